@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.apache.commons.lang3.time.DateUtils;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRQHandler;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of open associations to remote AEs.
+ * <p>
+ * All associations for a local AE title are opened from a single shared
+ * device. Idle associations are kept per remote AE and negotiated
+ * presentation contexts, validated before they are handed out again and
+ * closed once they have been idle for too long.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class AssociationPool
+{
+	private static final Logger logger = LoggerFactory.getLogger(AssociationPool.class);
+
+	private static final int maxIdle = Environment.getPropertyAsInt(SCU_POOL_MAX_IDLE);
+
+	private static final int minIdle = Environment.getPropertyAsInt(SCU_POOL_MIN_IDLE);
+
+	private static final long idleTimeout = Environment.getPropertyAsInt(SCU_POOL_IDLE_TIMEOUT_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	/**
+	 * Associations that have been idle for longer than this are verified with
+	 * a C-ECHO before they are reused
+	 */
+	private static final long VALIDATION_INTERVAL = 10 * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long REAP_INTERVAL_IN_SECS = 15;
+
+	private static final ConcurrentHashMap<String, ApplicationEntity> localAes
+			= new ConcurrentHashMap();
+
+	private static final ConcurrentHashMap<String, Pool> pools
+			= new ConcurrentHashMap();
+
+	private static volatile DimseRQHandler rqHandler;
+
+	static {
+		ExecutorServiceFactory.getScheduledService()
+				.scheduleWithFixedDelay(AssociationPool::reap,
+										REAP_INTERVAL_IN_SECS,
+										REAP_INTERVAL_IN_SECS,
+										TimeUnit.SECONDS);
+	}
+
+	private AssociationPool()
+	{
+	}
+
+	private static ApplicationEntity getLocalAe(String aeTitle)
+	{
+		return localAes.computeIfAbsent(aeTitle, k -> {
+			Device localDev = new Device("SCU-" + aeTitle);
+			localDev.setExecutor(ExecutorServiceFactory.getService());
+			localDev.setScheduledExecutor(ExecutorServiceFactory.getScheduledService());
+			if (rqHandler != null) {
+				localDev.setDimseRQHandler(rqHandler);
+			}
+
+			Connection localCon = new Connection();
+			localDev.addConnection(localCon);
+
+			ApplicationEntity localAe = new ApplicationEntity(aeTitle);
+			localAe.addConnection(localCon);
+			localDev.addApplicationEntity(localAe);
+
+			return localAe;
+		});
+	}
+
+	/**
+	 * Set the handler for requests the remote AE sends on pooled associations
+	 * (e.g. the C-STORE requests of a C-GET)
+	 *
+	 * @param handler the handler (cannot be null)
+	 */
+	public static void setDimseRQHandler(DimseRQHandler handler)
+	{
+		rqHandler = handler;
+
+		for (ApplicationEntity localAe : localAes.values()) {
+			localAe.getDevice().setDimseRQHandler(handler);
+		}
+	}
+
+	/**
+	 * Get an association from the pool, opening a new one if there is no
+	 * valid idle association
+	 *
+	 * @param key identifies the remote AE and the negotiated presentation
+	 * contexts. Associations are only shared between callers using the same
+	 * key.
+	 * @param localAeTitle the local (calling) AE title
+	 * @param remoteAeTitle the remote (called) AE title
+	 * @param remoteHost the remote host/IP address
+	 * @param remotePort the remote port
+	 * @param request supplies the association request if a new association
+	 * is needed. The first supplier given for a key is kept to open all
+	 * associations for the key, so it must not hold on to the caller.
+	 * @return the association. Must be passed to
+	 * {@link #release(String, Association)} when no longer needed.
+	 * @throws IOException if the association could not be opened
+	 * @throws InterruptedException if interrupted while opening the association
+	 * @throws IncompatibleConnectionException if the connection settings are
+	 * not compatible
+	 * @throws GeneralSecurityException if there was a TLS error
+	 */
+	public static Association borrow(String key,
+									 String localAeTitle,
+									 String remoteAeTitle,
+									 String remoteHost,
+									 int remotePort,
+									 Supplier<AAssociateRQ> request)
+			throws IOException, InterruptedException,
+				   IncompatibleConnectionException, GeneralSecurityException
+	{
+		Pool pool = pools.computeIfAbsent(key, k -> new Pool(localAeTitle,
+															 remoteAeTitle,
+															 remoteHost,
+															 remotePort,
+															 request));
+
+		Idle idle;
+		while ((idle = pool.idle.pollFirst()) != null) {
+			if (validate(idle)) {
+				return idle.association;
+			}
+
+			close(idle.association);
+		}
+
+		return pool.open();
+	}
+
+	/**
+	 * Return an association to the pool. The association is closed if it is
+	 * no longer usable or the pool is full.
+	 *
+	 * @param key the key the association was borrowed with
+	 * @param association the association (cannot be null)
+	 */
+	public static void release(String key, Association association)
+	{
+		Pool pool = pools.get(key);
+		if (pool == null
+			|| !association.isReadyForDataTransfer()
+			|| pool.idle.size() >= maxIdle) {
+			close(association);
+		}
+		else {
+			pool.idle.offerFirst(new Idle(association));
+		}
+	}
+
+	/**
+	 * Abort an association that is in an unknown state instead of returning
+	 * it to the pool
+	 *
+	 * @param association the association (cannot be null)
+	 */
+	public static void discard(Association association)
+	{
+		association.abort();
+	}
+
+	private static boolean validate(Idle idle)
+	{
+		Association association = idle.association;
+		if (!association.isReadyForDataTransfer()) {
+			return false;
+		}
+
+		if (System.currentTimeMillis() - idle.since < VALIDATION_INTERVAL) {
+			return true;
+		}
+
+		if (association.getTransferSyntaxesFor(UID.VerificationSOPClass).isEmpty()) {
+			// Verification was not negotiated so the association state is all we have
+			return true;
+		}
+
+		try {
+			DimseRSP rsp = association.cecho();
+			rsp.next();
+
+			return rsp.getCommand().getInt(Tag.Status, -1) == Status.Success;
+		}
+		catch (Exception ex) {
+			logger.debug("Idle association to " + association.getRemoteAET()
+						 + " failed validation", ex);
+
+			return false;
+		}
+	}
+
+	private static void close(Association association)
+	{
+		if (association.isReadyForDataTransfer()) {
+			try {
+				association.release();
+			}
+			catch (IOException ex) {
+				logger.debug("Failed to release association to "
+							 + association.getRemoteAET(), ex);
+
+				association.abort();
+			}
+		}
+		else {
+			association.abort();
+		}
+	}
+
+	/**
+	 * Close associations that have been idle for too long and top up pools
+	 * that have fewer than the minimum number of idle associations
+	 */
+	private static void reap()
+	{
+		long now = System.currentTimeMillis();
+		for (Pool pool : pools.values()) {
+			try {
+				Iterator<Idle> it = pool.idle.descendingIterator();
+				while (it.hasNext()) {
+					Idle idle = it.next();
+
+					boolean expired = now - idle.since >= idleTimeout
+									  && pool.idle.size() > minIdle;
+					if (expired || !idle.association.isReadyForDataTransfer()) {
+						if (pool.idle.removeLastOccurrence(idle)) {
+							close(idle.association);
+						}
+					}
+				}
+
+				for (int i = pool.idle.size(); i < Math.min(minIdle, maxIdle); i++) {
+					pool.idle.offerLast(new Idle(pool.open()));
+				}
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to maintain association pool for "
+							 + pool.remoteAeTitle, ex);
+			}
+		}
+	}
+
+	private static class Pool
+	{
+		private final String localAeTitle;
+
+		private final String remoteAeTitle;
+
+		private final String remoteHost;
+
+		private final int remotePort;
+
+		private final Supplier<AAssociateRQ> request;
+
+		private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque();
+
+		private Pool(String localAeTitle,
+					 String remoteAeTitle,
+					 String remoteHost,
+					 int remotePort,
+					 Supplier<AAssociateRQ> request)
+		{
+			this.localAeTitle = localAeTitle;
+			this.remoteAeTitle = remoteAeTitle;
+			this.remoteHost = remoteHost;
+			this.remotePort = remotePort;
+			this.request = request;
+		}
+
+		private Association open() throws IOException, InterruptedException,
+				IncompatibleConnectionException, GeneralSecurityException
+		{
+			Device remoteDev = new Device("SCP");
+
+			Connection rc = new Connection("", remoteHost, remotePort);
+			remoteDev.addConnection(rc);
+
+			ApplicationEntity remoteAe = new ApplicationEntity(remoteAeTitle);
+			remoteAe.addConnection(rc);
+			remoteDev.addApplicationEntity(remoteAe);
+
+			return getLocalAe(localAeTitle).connect(remoteAe, request.get());
+		}
+
+	}
+
+	private static class Idle
+	{
+		private final Association association;
+
+		private final long since = System.currentTimeMillis();
+
+		private Idle(Association association)
+		{
+			this.association = association;
+		}
+
+	}
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A remote AE that requests can be routed to.
+ * <p>
+ * Tracks the result of the last health probe, the number of requests in
+ * flight and the durations of recent requests.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class Backend
+{
+	/**
+	 * Number of request durations kept to estimate percentiles
+	 */
+	private static final int SAMPLES = 100;
+
+	/**
+	 * Minimum number of request durations needed to estimate percentiles
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	private final String aeTitle;
+
+	private final String host;
+
+	private final int port;
+
+	private final int weight;
+
+	private final CircuitBreaker breaker;
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final long durations[] = new long[SAMPLES];
+
+	/**
+	 * Position of the next duration in the ring
+	 */
+	private int nextSample;
+
+	/**
+	 * Number of durations in the ring (at most SAMPLES)
+	 */
+	private int sampleCount;
+
+	private volatile boolean reachable = true;
+
+	private volatile long echoLatency = -1;
+
+	Backend(String aeTitle,
+			String host,
+			int port,
+			int weight,
+			int breakerThreshold,
+			long breakerResetTimeout)
+	{
+		this.aeTitle = aeTitle;
+		this.host = host;
+		this.port = port;
+		this.weight = Math.max(1, weight);
+		this.breaker = CircuitBreaker.get(aeTitle,
+										  host,
+										  port,
+										  breakerThreshold,
+										  breakerResetTimeout);
+	}
+
+	/**
+	 * Get the AE title
+	 *
+	 * @return the AE title
+	 */
+	public String getAeTitle()
+	{
+		return aeTitle;
+	}
+
+	/**
+	 * Get the host/IP address
+	 *
+	 * @return the host/IP address
+	 */
+	public String getHost()
+	{
+		return host;
+	}
+
+	/**
+	 * Get the port
+	 *
+	 * @return the port
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Get the relative share of requests the backend should receive
+	 *
+	 * @return the weight (at least 1)
+	 */
+	public int getWeight()
+	{
+		return weight;
+	}
+
+	/**
+	 * Get the circuit breaker of the backend
+	 *
+	 * @return the breaker
+	 */
+	public CircuitBreaker getBreaker()
+	{
+		return breaker;
+	}
+
+	/**
+	 * Get the name of the backend
+	 *
+	 * @return the name in AET@host:port format
+	 */
+	public String getName()
+	{
+		return breaker.getName();
+	}
+
+	/**
+	 * Determine if the backend is expected to accept requests. It must have
+	 * answered its last health probe and its breaker must not be open.
+	 *
+	 * @return true if the backend is healthy
+	 */
+	public boolean isHealthy()
+	{
+		return reachable && !breaker.isOpen();
+	}
+
+	/**
+	 * Get the round trip time of the last successful health probe
+	 *
+	 * @return the time in ms or -1 if the last probe failed or the backend
+	 * has not been probed
+	 */
+	public long getEchoLatency()
+	{
+		return echoLatency;
+	}
+
+	void setProbeResult(boolean reachable, long echoLatency)
+	{
+		this.reachable = reachable;
+		this.echoLatency = reachable ? echoLatency : -1;
+	}
+
+	/**
+	 * Get the number of requests in flight
+	 *
+	 * @return the number of requests
+	 */
+	public int getActive()
+	{
+		return active.get();
+	}
+
+	/**
+	 * Get the load of the backend relative to its weight
+	 *
+	 * @return the load
+	 */
+	double getLoad()
+	{
+		return (active.get() + 1.0) / weight;
+	}
+
+	/**
+	 * Record the start of a request. Must be followed by a call to
+	 * {@link #end(long, boolean)}.
+	 */
+	public void begin()
+	{
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Record the end of a request
+	 *
+	 * @param duration how long the request took in ms
+	 * @param success true if the request succeeded. Only the durations of
+	 * successful requests are used for percentiles.
+	 */
+	public void end(long duration, boolean success)
+	{
+		active.decrementAndGet();
+
+		if (success) {
+			synchronized (durations) {
+				durations[nextSample] = duration;
+				nextSample = (nextSample + 1) % SAMPLES;
+				sampleCount = Math.min(sampleCount + 1, SAMPLES);
+			}
+		}
+	}
+
+	/**
+	 * Get the 95th percentile of the durations of recent successful requests
+	 *
+	 * @return the duration in ms or -1 if there are too few requests
+	 */
+	public long getP95()
+	{
+		long sorted[];
+		synchronized (durations) {
+			if (sampleCount < MIN_SAMPLES) {
+				return -1;
+			}
+
+			sorted = Arrays.copyOf(durations, sampleCount);
+		}
+
+		Arrays.sort(sorted);
+
+		return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+	}
+
+	@Override
+	public String toString()
+	{
+		return getName();
+	}
+
+}
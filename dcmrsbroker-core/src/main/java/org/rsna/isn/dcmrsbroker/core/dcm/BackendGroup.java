@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of remote AEs that hold the same studies.
+ * <p>
+ * Each backend is probed with a C-ECHO in the background. Requests are
+ * routed to the healthy backend with the lowest load relative to its weight.
+ * Callers fail over by asking for the next backend, excluding the ones that
+ * already failed.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class BackendGroup
+{
+	private static final Logger logger = LoggerFactory.getLogger(BackendGroup.class);
+
+	private static final int breakerThreshold = Environment.getPropertyAsInt(WADO_CIRCUIT_BREAKER_THRESHOLD);
+
+	private static final long breakerResetTimeout = Environment.getPropertyAsInt(WADO_CIRCUIT_BREAKER_RESET_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final int healthCheckInterval = Environment.getPropertyAsInt(SCU_HEALTH_CHECK_INTERVAL_IN_SECS);
+
+	private static final BackendGroup wado
+			= new BackendGroup("WADO",
+							   Environment.getProperty(WADO_LOCAL_AE),
+							   Environment.getProperty(WADO_REMOTE_AE),
+							   Environment.getProperty(WADO_REMOTE_HOST),
+							   Environment.getPropertyAsInt(WADO_REMOTE_PORT),
+							   Environment.getProperty(WADO_BACKENDS));
+
+	private static final BackendGroup qido
+			= new BackendGroup("QIDO",
+							   Environment.getProperty(QIDO_LOCAL_AE),
+							   Environment.getProperty(QIDO_REMOTE_AE),
+							   Environment.getProperty(QIDO_REMOTE_HOST),
+							   Environment.getPropertyAsInt(QIDO_REMOTE_PORT),
+							   Environment.getProperty(QIDO_BACKENDS));
+
+	static {
+		if (healthCheckInterval > 0) {
+			ExecutorServiceFactory.getScheduledService()
+					.scheduleWithFixedDelay(BackendGroup::probeAll,
+											0,
+											healthCheckInterval,
+											TimeUnit.SECONDS);
+		}
+	}
+
+	private final String name;
+
+	private final String localAeTitle;
+
+	private final List<Backend> backends;
+
+	private BackendGroup(String name,
+						 String localAeTitle,
+						 String remoteAeTitle,
+						 String remoteHost,
+						 int remotePort,
+						 String additional)
+	{
+		this.name = name;
+		this.localAeTitle = localAeTitle;
+
+		Map<String, Backend> map = new LinkedHashMap();
+
+		Backend primary = new Backend(remoteAeTitle,
+									  remoteHost,
+									  remotePort,
+									  1,
+									  breakerThreshold,
+									  breakerResetTimeout);
+		map.put(primary.getName(), primary);
+
+		for (String spec : StringUtils.split(StringUtils.defaultString(additional), ',')) {
+			Backend backend = parse(spec.trim());
+
+			// Listing the primary again overrides its weight
+			map.put(backend.getName(), backend);
+		}
+
+		this.backends = Collections.unmodifiableList(new ArrayList(map.values()));
+
+		if (backends.size() > 1) {
+			logger.info("{} backends: {}", name, backends);
+		}
+	}
+
+	/**
+	 * Parse a backend in AET@host:port[/weight] format
+	 */
+	private static Backend parse(String spec)
+	{
+		String aeTitle = StringUtils.substringBefore(spec, "@");
+		String address = StringUtils.substringAfter(spec, "@");
+
+		int weight = 1;
+		if (address.contains("/")) {
+			weight = Integer.parseInt(StringUtils.substringAfter(address, "/").trim());
+			address = StringUtils.substringBefore(address, "/");
+		}
+
+		String host = StringUtils.substringBeforeLast(address, ":");
+		String port = StringUtils.substringAfterLast(address, ":");
+
+		if (StringUtils.isAnyBlank(aeTitle, host, port)) {
+			throw new ExceptionInInitializerError("Invalid backend: " + spec
+												  + ". Expected AET@host:port[/weight].");
+		}
+
+		return new Backend(aeTitle,
+						   host,
+						   Integer.parseInt(port.trim()),
+						   weight,
+						   breakerThreshold,
+						   breakerResetTimeout);
+	}
+
+	/**
+	 * Get the backends used for retrieves
+	 *
+	 * @return the group
+	 */
+	public static BackendGroup getWado()
+	{
+		return wado;
+	}
+
+	/**
+	 * Get the backends used for queries
+	 *
+	 * @return the group
+	 */
+	public static BackendGroup getQido()
+	{
+		return qido;
+	}
+
+	/**
+	 * Get the name of the group
+	 *
+	 * @return the name (e.g. WADO)
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the backends of the group
+	 *
+	 * @return the backends in configuration order. The first one is the
+	 * primary.
+	 */
+	public List<Backend> getBackends()
+	{
+		return backends;
+	}
+
+	/**
+	 * Get the backend a new request should be sent to
+	 *
+	 * @return the backend
+	 */
+	public Backend select()
+	{
+		return select(Collections.emptySet());
+	}
+
+	/**
+	 * Get the backend a request should be sent to. Healthy backends are
+	 * preferred over unhealthy ones. Among those, the backend with the lowest
+	 * load relative to its weight is chosen and ties go to the backend that
+	 * answered its last health probe fastest.
+	 *
+	 * @param exclude backends that should not be used (e.g. because the
+	 * request already failed on them)
+	 * @return the backend or null if all backends are excluded
+	 */
+	public Backend select(Collection<Backend> exclude)
+	{
+		Backend best = null;
+		for (Backend backend : backends) {
+			if (exclude.contains(backend)) {
+				continue;
+			}
+
+			if (best == null || compare(backend, best) < 0) {
+				best = backend;
+			}
+		}
+
+		return best;
+	}
+
+	private static int compare(Backend a, Backend b)
+	{
+		if (a.isHealthy() != b.isHealthy()) {
+			return a.isHealthy() ? -1 : 1;
+		}
+
+		int cmp = Double.compare(a.getLoad(), b.getLoad());
+		if (cmp != 0) {
+			return cmp;
+		}
+
+		long la = a.getEchoLatency() < 0 ? Long.MAX_VALUE : a.getEchoLatency();
+		long lb = b.getEchoLatency() < 0 ? Long.MAX_VALUE : b.getEchoLatency();
+
+		return Long.compare(la, lb);
+	}
+
+	private static void probeAll()
+	{
+		for (BackendGroup group : new BackendGroup[]{wado, qido}) {
+			for (Backend backend : group.backends) {
+				group.probe(backend);
+			}
+		}
+	}
+
+	private void probe(Backend backend)
+	{
+		boolean wasHealthy = backend.isHealthy();
+
+		Probe probe = new Probe(localAeTitle, backend);
+		try {
+			long start = System.currentTimeMillis();
+
+			Association assoc = probe.connect();
+			DimseRSP rsp = assoc.cecho();
+			rsp.next();
+
+			if (rsp.getCommand().getInt(Tag.Status, -1) != Status.Success) {
+				throw new IllegalStateException("C-ECHO failed");
+			}
+
+			backend.setProbeResult(true, System.currentTimeMillis() - start);
+
+			probe.releaseGracefully();
+		}
+		catch (Exception ex) {
+			probe.discard();
+
+			backend.setProbeResult(false, -1);
+
+			logger.debug("Health probe of " + name + " backend " + backend
+						 + " failed", ex);
+		}
+
+		if (wasHealthy != backend.isHealthy()) {
+			logger.info("{} backend {} is now {}", name, backend,
+						backend.isHealthy() ? "healthy" : "unhealthy");
+		}
+	}
+
+	private static class Probe extends Scu
+	{
+		private Probe(String localAeTitle, Backend backend)
+		{
+			super(localAeTitle,
+				  backend.getAeTitle(),
+				  backend.getHost(),
+				  backend.getPort(),
+				  UID.VerificationSOPClass);
+		}
+
+	}
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for a remote AE.
+ * <p>
+ * After a number of consecutive failures the breaker opens and requests to
+ * the remote AE are rejected without being attempted. Once the reset timeout
+ * has passed a single request is let through. The breaker closes if that
+ * request succeeds and opens again if it fails or does not report its outcome
+ * within the reset timeout.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class CircuitBreaker
+{
+	private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers
+			= new ConcurrentHashMap();
+
+	private enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+
+	private final int threshold;
+
+	private final long resetTimeout;
+
+	private State state = State.CLOSED;
+
+	private int failures;
+
+	private long openedAt;
+
+	private long trialStartedAt;
+
+	private Thread trialThread;
+
+	private CircuitBreaker(String name, int threshold, long resetTimeout)
+	{
+		this.name = name;
+		this.threshold = threshold;
+		this.resetTimeout = resetTimeout;
+	}
+
+	/**
+	 * Get the breaker for a remote AE. The breaker is created with the given
+	 * settings the first time it is requested.
+	 *
+	 * @param aeTitle the remote AE title
+	 * @param host the remote host/IP address
+	 * @param port the remote port
+	 * @param threshold the number of consecutive failures before the breaker
+	 * opens. If less than 1, the breaker never opens.
+	 * @param resetTimeout how long (in ms) the breaker stays open before a
+	 * request is let through
+	 * @return the breaker
+	 */
+	public static CircuitBreaker get(String aeTitle,
+									 String host,
+									 int port,
+									 int threshold,
+									 long resetTimeout)
+	{
+		String name = aeTitle + "@" + host + ":" + port;
+
+		return breakers.computeIfAbsent(name,
+										k -> new CircuitBreaker(k, threshold, resetTimeout));
+	}
+
+	/**
+	 * Get the name of the remote AE
+	 *
+	 * @return the name in AET@host:port format
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Determine if requests are currently being rejected. Unlike
+	 * {@link #allowRequest()} this does not let a trial request through.
+	 *
+	 * @return true if the breaker is open and the reset timeout has not passed
+	 */
+	public synchronized boolean isOpen()
+	{
+		expireTrial();
+
+		switch (state) {
+			case OPEN:
+				return System.currentTimeMillis() - openedAt < resetTimeout;
+			case HALF_OPEN:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Determine if a request may be sent to the remote AE. If this returns
+	 * true, the outcome must be reported with {@link #recordSuccess()} or
+	 * {@link #recordFailure()}.
+	 *
+	 * @return true if the request may be sent
+	 */
+	public synchronized boolean allowRequest()
+	{
+		expireTrial();
+
+		switch (state) {
+			case OPEN:
+				if (System.currentTimeMillis() - openedAt >= resetTimeout) {
+					state = State.HALF_OPEN;
+					trialStartedAt = System.currentTimeMillis();
+					trialThread = Thread.currentThread();
+
+					logger.info("Trying remote AE {} again", name);
+
+					return true;
+				}
+				else {
+					return false;
+				}
+			case HALF_OPEN:
+				// Only the trial request is let through
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * End a request let through by {@link #allowRequest()} whose outcome was
+	 * not reported (e.g. because nothing had to be sent). If it was the trial
+	 * request, the next request is the trial instead. Does nothing if the
+	 * outcome was reported or if the calling thread did not start the trial.
+	 */
+	public synchronized void releaseTrial()
+	{
+		if (state == State.HALF_OPEN && trialThread == Thread.currentThread()) {
+			// The reset timeout has passed, so the next request is let through
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * Open the breaker again if the trial request has not reported its
+	 * outcome within the reset timeout
+	 */
+	private void expireTrial()
+	{
+		long now = System.currentTimeMillis();
+		if (state == State.HALF_OPEN && now - trialStartedAt >= resetTimeout) {
+			state = State.OPEN;
+			openedAt = now;
+
+			logger.warn("Trial request to remote AE {} did not finish within {} ms. "
+						+ "Rejecting requests for {} ms.",
+						name, resetTimeout, resetTimeout);
+		}
+	}
+
+	/**
+	 * Record a successful request
+	 */
+	public synchronized void recordSuccess()
+	{
+		if (state != State.CLOSED) {
+			logger.info("Remote AE {} is available again", name);
+		}
+
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	/**
+	 * Record a failed request
+	 */
+	public synchronized void recordFailure()
+	{
+		failures++;
+
+		if (state == State.HALF_OPEN
+			|| (threshold > 0 && state == State.CLOSED && failures >= threshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+
+			logger.warn("Remote AE {} is unavailable after {} consecutive failure(s). "
+						+ "Rejecting requests for {} ms.",
+						name, failures, resetTimeout);
+		}
+	}
+
+}
@@ -18,17 +18,14 @@ package org.rsna.isn.dcmrsbroker.core.dcm;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.EnumSet;
+import java.util.function.Supplier;
 import org.dcm4che3.data.UID;
-import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import static org.dcm4che3.net.Association.LOG;
-import org.dcm4che3.net.Connection;
-import org.dcm4che3.net.Device;
 import org.dcm4che3.net.IncompatibleConnectionException;
 import org.dcm4che3.net.QueryOption;
 import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.ExtendedNegotiation;
-import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
 
 /**
  * Base class for SCUs
@@ -64,6 +61,29 @@ public abstract class Scu
 		queryOptions.addAll(options);
 	}
 
+	protected Scu(String localAeTitle,
+				  Backend backend,
+				  String sopClass)
+	{
+		this(localAeTitle,
+			 backend.getAeTitle(),
+			 backend.getHost(),
+			 backend.getPort(),
+			 sopClass);
+
+		this.backend = backend;
+	}
+
+	protected Scu(String localAeTitle,
+				  Backend backend,
+				  String sopClass,
+				  EnumSet<QueryOption> options)
+	{
+		this(localAeTitle, backend, sopClass);
+
+		queryOptions.addAll(options);
+	}
+
 	private final String localAeTitle;
 
 	/**
@@ -76,7 +96,7 @@ public abstract class Scu
 		return localAeTitle;
 	}
 
-	private final String remoteAeTitle;
+	private volatile String remoteAeTitle;
 
 	/**
 	 * Get the remote (called) AE title
@@ -88,7 +108,7 @@ public abstract class Scu
 		return remoteAeTitle;
 	}
 
-	private final String remoteHost;
+	private volatile String remoteHost;
 
 	/**
 	 * Get the remote host/IP address
@@ -100,7 +120,7 @@ public abstract class Scu
 		return remoteHost;
 	}
 
-	private final int remotePort;
+	private volatile int remotePort;
 
 	/**
 	 * Get the remote port
@@ -112,6 +132,36 @@ public abstract class Scu
 		return remotePort;
 	}
 
+	private volatile Backend backend;
+
+	/**
+	 * Get the backend the requests of this SCU are sent to
+	 *
+	 * @return the backend or null if the SCU was created for a fixed remote AE
+	 */
+	public Backend getBackend()
+	{
+		return backend;
+	}
+
+	/**
+	 * Send the requests of this SCU to another backend (e.g. to fail over)
+	 *
+	 * @param backend the backend (cannot be null)
+	 * @throws IllegalStateException if the SCU is connected
+	 */
+	protected synchronized void setBackend(Backend backend)
+	{
+		if (association != null) {
+			throw new IllegalStateException("Cannot change the backend of a connected SCU");
+		}
+
+		this.backend = backend;
+		this.remoteAeTitle = backend.getAeTitle();
+		this.remoteHost = backend.getHost();
+		this.remotePort = backend.getPort();
+	}
+
 	private final String sopClass;
 
 	/**
@@ -148,51 +198,86 @@ public abstract class Scu
 		return association;
 	}
 
-	protected synchronized Association connect() throws IOException,
-			InterruptedException, IncompatibleConnectionException, GeneralSecurityException
+	/**
+	 * Get the key used to share pooled associations. Associations are only
+	 * shared between SCUs that negotiate the same presentation contexts with
+	 * the same remote AE.
+	 *
+	 * @return the key
+	 */
+	protected String getPoolKey()
 	{
-		if (association != null) {
-			return association;
-		}
-
-		Device localDev = new Device("SCU");
-		localDev.setExecutor(ExecutorServiceFactory.getService());
-		localDev.setScheduledExecutor(ExecutorServiceFactory.getScheduledService());
-
-		Connection localCon = new Connection();
-		localDev.addConnection(localCon);
-
-		ApplicationEntity localAe = new ApplicationEntity(localAeTitle);
-		localAe.addConnection(localCon);
-		localDev.addApplicationEntity(localAe);
-
-
-
-		Device remoteDev = new Device("SCP");
+		return localAeTitle + ">" + remoteAeTitle + "@" + remoteHost + ":"
+			   + remotePort + "/" + sopClass + queryOptions;
+	}
 
-		Connection rc = new Connection("", remoteHost, remotePort);
-		remoteDev.addConnection(rc);
+	/**
+	 * Get the factory of the requests used to open new associations. The
+	 * pool keeps the factory of the first SCU that uses a key for as long as
+	 * it runs, so the factory must only depend on the values in the pool key
+	 * and must not capture the SCU.
+	 *
+	 * @return the factory
+	 */
+	protected Supplier<AAssociateRQ> getRequestFactory()
+	{
+		String cuid = sopClass;
+		EnumSet<QueryOption> options = getQueryOptions();
 
-		ApplicationEntity remoteAe = new ApplicationEntity(remoteAeTitle);
-		remoteAe.addConnection(rc);
-		remoteDev.addApplicationEntity(remoteAe);
+		return () -> createRequest(cuid, options);
+	}
 
+	private static AAssociateRQ createRequest(String sopClass,
+											  EnumSet<QueryOption> queryOptions)
+	{
 		AAssociateRQ rq = new AAssociateRQ();
 		rq.addPresentationContextFor(sopClass,
 									 UID.ImplicitVRLittleEndian);
 		rq.addPresentationContextFor(sopClass,
 									 UID.ExplicitVRLittleEndian);
 
+		// Used to validate pooled associations
+		rq.addPresentationContextFor(UID.VerificationSOPClass,
+									 UID.ImplicitVRLittleEndian);
+
 		if (!queryOptions.isEmpty()) {
 			rq.addExtendedNegotiation(new ExtendedNegotiation(sopClass,
 															  QueryOption.toExtendedNegotiationInformation(queryOptions)));
 		}
 
-		association = localAe.connect(remoteAe, rq);
+		return rq;
+	}
+
+	/**
+	 * Borrow an association to the remote AE from the pool
+	 *
+	 * @return the association
+	 * @throws IOException if the association could not be opened
+	 * @throws InterruptedException if interrupted while opening the association
+	 * @throws IncompatibleConnectionException if the connection settings are
+	 * not compatible
+	 * @throws GeneralSecurityException if there was a TLS error
+	 */
+	protected synchronized Association connect() throws IOException,
+			InterruptedException, IncompatibleConnectionException, GeneralSecurityException
+	{
+		if (association != null) {
+			return association;
+		}
+
+		association = AssociationPool.borrow(getPoolKey(),
+											 localAeTitle,
+											 remoteAeTitle,
+											 remoteHost,
+											 remotePort,
+											 getRequestFactory());
 
 		return association;
 	}
 
+	/**
+	 * Wait for outstanding responses and return the association to the pool
+	 */
 	protected synchronized void releaseGracefully()
 	{
 		if(association == null) {
@@ -200,32 +285,39 @@ public abstract class Scu
 		}
 		
 		
-		// Copied from v3.3.8 of the dcm4che toolkit
 		if (association.isReadyForDataTransfer()) {
-
 			try {
 				association.waitForOutstandingRSP();
 			}
 			catch (InterruptedException ignored) {
-				// if we get interrupted while trying to close the association, most likely we still want to close it
+				// Responses may still be outstanding so the association can't be reused
 				Thread.currentThread().interrupt();
-				LOG.warn("Interrupted while preparing to close the association, "
-						 + "will try to release the association anyway: " + this.toString(), ignored);
-			}
+				LOG.warn("Interrupted while waiting for outstanding responses, "
+						 + "aborting the association: " + this.toString(), ignored);
 
-			try {
-				association.release();
-			}
-			catch (IOException e) {
-				LOG.warn("Failed to release association to " + association.getRemoteAET(), e);
+				discard();
+
+				return;
 			}
 		}
-		else {
-			LOG.warn("Attempted to close the association, "
-					 + "but it was not ready for data transfer",
-					 new IOException("Association not ready for data transfer"));
+
+		AssociationPool.release(getPoolKey(), association);
+
+		association = null;
+	}
+
+	/**
+	 * Abort the association instead of returning it to the pool. Should be
+	 * used when the association is in an unknown state (e.g. after an error).
+	 */
+	protected synchronized void discard()
+	{
+		if (association == null) {
+			return;
 		}
-		
+
+		AssociationPool.discard(association);
+
 		association = null;
 	}
 
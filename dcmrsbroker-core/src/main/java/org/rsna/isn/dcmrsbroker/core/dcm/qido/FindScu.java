@@ -20,9 +20,17 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import org.apache.commons.lang3.time.DateUtils;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
@@ -34,9 +42,13 @@ import org.dcm4che3.net.QueryOption;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.ExtendedNegotiation;
 import static org.rsna.isn.dcmrsbroker.core.dcm.Level.*;
+import org.rsna.isn.dcmrsbroker.core.dcm.Backend;
+import org.rsna.isn.dcmrsbroker.core.dcm.BackendGroup;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
 import org.rsna.isn.dcmrsbroker.core.dcm.Scu;
 import org.rsna.isn.dcmrsbroker.core.util.Environment;
 import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +62,10 @@ public class FindScu extends Scu
 {
 	private static final Logger logger = LoggerFactory.getLogger(FindScu.class);
 
+	private static final boolean federated = Environment.getPropertyAsBoolean(QIDO_FEDERATED);
+
+	private static final long backendTimeout = Environment.getPropertyAsInt(QIDO_BACKEND_TIMEOUT_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
 	public AttributeId REQUIRED_STUDY_ATTRIBUTE_IDS[] = {
 		new AttributeId("SpecificCharacterSet"),
 		new AttributeId("StudyDate"),
@@ -71,21 +87,311 @@ public class FindScu extends Scu
 	};
 
 	public FindScu()
+	{
+		this(BackendGroup.getQido().select());
+	}
+
+	private FindScu(Backend backend)
 	{
 		super(Environment.getProperty(QIDO_LOCAL_AE),
-			  Environment.getProperty(QIDO_REMOTE_AE),
-			  Environment.getProperty(QIDO_REMOTE_HOST),
-			  Environment.getPropertyAsInt(QIDO_REMOTE_PORT),
+			  backend,
 			  UID.StudyRootQueryRetrieveInformationModelFIND,
 			  EnumSet.allOf(QueryOption.class));
 	}
 
+	/**
+	 * Run a query. If federated queries are enabled, the query is sent to all
+	 * backends in parallel and the results are merged. Otherwise it is sent to
+	 * a single backend and repeated on the next healthy one if it fails.
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @return the matches
+	 * @throws IOException if the query failed on all backends
+	 * @throws InterruptedException if interrupted while waiting for results
+	 * @throws IncompatibleConnectionException if the connection settings are
+	 * not compatible
+	 * @throws GeneralSecurityException if there was a TLS error
+	 */
 	public List<Attributes> doQuery(QueryParameters params) throws IOException,
 			InterruptedException, IncompatibleConnectionException, GeneralSecurityException
+	{
+		return doQuery(params, params.getOffset(), params.getLimit());
+	}
+
+	/**
+	 * Run a query, ignoring the offset and limit of the query parameters
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @param offset the number of matches to skip
+	 * @param limit the maximum number of matches or 0 for all matches
+	 * @return the matches
+	 * @throws IOException if the query failed on all backends
+	 * @throws InterruptedException if interrupted while waiting for results
+	 * @throws IncompatibleConnectionException if the connection settings are
+	 * not compatible
+	 * @throws GeneralSecurityException if there was a TLS error
+	 * @see #doQuery(QueryParameters)
+	 */
+	public List<Attributes> doQuery(QueryParameters params, int offset, int limit)
+			throws IOException, InterruptedException,
+			IncompatibleConnectionException, GeneralSecurityException
+	{
+		if (federated && BackendGroup.getQido().getBackends().size() > 1) {
+			return doFederatedQuery(params, offset, limit);
+		}
+
+		Set<Backend> failed = new HashSet();
+		while (true) {
+			Backend backend = getBackend();
+			try {
+				List<Attributes> results = new ArrayList();
+				timedQuery(params, offset, limit, results::add);
+
+				return results;
+			}
+			catch (IOException | IncompatibleConnectionException | GeneralSecurityException ex) {
+				failed.add(backend);
+				Backend next = BackendGroup.getQido().select(failed);
+				if (next == null || !next.isHealthy()) {
+					throw ex;
+				}
+
+				logger.warn("Query failed on " + backend + ". Failing over to "
+							+ next + ".", ex);
+
+				setBackend(next);
+			}
+		}
+	}
+
+	/**
+	 * Start a query whose matches are read as they arrive. Federated queries
+	 * are merged before the first match is returned. Otherwise the query
+	 * fails over to the next healthy backend as long as no match has been
+	 * returned yet.
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @return the stream of matches (must be closed)
+	 */
+	public QueryStream openQuery(QueryParameters params)
+	{
+		return openQuery(params, params.getOffset(), params.getLimit());
+	}
+
+	/**
+	 * Start a query whose matches are read as they arrive, ignoring the
+	 * offset and limit of the query parameters
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @param offset the number of matches to skip
+	 * @param limit the maximum number of matches or 0 for all matches
+	 * @return the stream of matches (must be closed)
+	 * @see #openQuery(QueryParameters)
+	 */
+	public QueryStream openQuery(QueryParameters params, int offset, int limit)
+	{
+		QueryStream stream = new QueryStream();
+		stream.setTask(ExecutorServiceFactory.getService().submit(() -> {
+			if (federated && BackendGroup.getQido().getBackends().size() > 1) {
+				try {
+					doFederatedQuery(params, offset, limit).forEach(stream::put);
+					stream.finish(null);
+				}
+				catch (Exception ex) {
+					stream.finish(ex);
+				}
+
+				return;
+			}
+
+			Set<Backend> failed = new HashSet();
+			while (true) {
+				Backend backend = getBackend();
+				try {
+					timedQuery(params, offset, limit, stream::put);
+					stream.finish(null);
+
+					return;
+				}
+				catch (IOException | IncompatibleConnectionException | GeneralSecurityException ex) {
+					failed.add(backend);
+					Backend next = BackendGroup.getQido().select(failed);
+					if (stream.isDelivered() || next == null || !next.isHealthy()) {
+						stream.finish(ex);
+
+						return;
+					}
+
+					logger.warn("Query failed on " + backend + ". Failing over to "
+								+ next + ".", ex);
+
+					setBackend(next);
+				}
+				catch (Exception ex) {
+					stream.finish(ex);
+
+					return;
+				}
+			}
+		}));
+
+		return stream;
+	}
+
+	/**
+	 * Send a query to all healthy backends in parallel (or to all backends if
+	 * none is healthy). The offset and limit are applied after the results
+	 * have been merged in backend order and deduplicated by the UID of the
+	 * query level. Backends that have not answered within the timeout are
+	 * aborted and contribute the matches received so far.
+	 */
+	private List<Attributes> doFederatedQuery(QueryParameters params,
+											  int offset,
+											  int limit)
+			throws IOException, InterruptedException
+	{
+		List<Backend> backends = new ArrayList();
+		for (Backend backend : BackendGroup.getQido().getBackends()) {
+			if (backend.isHealthy()) {
+				backends.add(backend);
+			}
+		}
+
+		if (backends.isEmpty()) {
+			backends.addAll(BackendGroup.getQido().getBackends());
+		}
+
+		// Each backend can contribute at most offset + limit results
+		int max = limit > 0 ? offset + limit : 0;
+
+		List<List<Attributes>> results = new ArrayList();
+		List<Future<?>> futures = new ArrayList();
+		for (Backend backend : backends) {
+			FindScu scu = new FindScu(backend);
+			List<Attributes> partial = Collections.synchronizedList(new ArrayList());
+
+			results.add(partial);
+			futures.add(ExecutorServiceFactory.getService().submit(() -> {
+				scu.timedQuery(params, 0, max, partial::add);
+
+				return null;
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + backendTimeout;
+		int failures = 0;
+		Throwable error = null;
+		for (int i = 0; i < futures.size(); i++) {
+			Future<?> future = futures.get(i);
+			try {
+				future.get(Math.max(0, deadline - System.currentTimeMillis()),
+						   TimeUnit.MILLISECONDS);
+			}
+			catch (TimeoutException ex) {
+				future.cancel(true);
+
+				logger.warn("Query on {} did not finish within {} ms. Using the {} "
+							+ "result(s) received so far.",
+							backends.get(i), backendTimeout, results.get(i).size());
+			}
+			catch (ExecutionException ex) {
+				failures++;
+				error = ex.getCause();
+
+				logger.warn("Query failed on " + backends.get(i), ex.getCause());
+			}
+		}
+
+		if (failures == futures.size()) {
+			throw new IOException("Query failed on all backends", error);
+		}
+
+		return merge(results, params.getLevel(), offset, limit);
+	}
+
+	/**
+	 * Merge the results of several backends, keeping the first result for
+	 * each UID of the query level
+	 */
+	private static List<Attributes> merge(List<List<Attributes>> results,
+										  Level level,
+										  int offset,
+										  int limit)
+	{
+		int tag;
+		switch (level) {
+			case STUDY:
+				tag = Tag.StudyInstanceUID;
+				break;
+			case SERIES:
+				tag = Tag.SeriesInstanceUID;
+				break;
+			default:
+				tag = Tag.SOPInstanceUID;
+				break;
+		}
+
+		Set<String> seen = new HashSet();
+		List<Attributes> merged = new ArrayList();
+		int index = 0;
+		for (List<Attributes> partial : results) {
+			synchronized (partial) {
+				for (Attributes result : partial) {
+					String uid = result.getString(tag);
+					if (uid != null && !seen.add(uid)) {
+						continue;
+					}
+
+					if (index++ >= offset && (limit == 0 || merged.size() < limit)) {
+						merged.add(result);
+					}
+				}
+			}
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Run a query on the current backend, recording its duration and
+	 * outcome with the backend
+	 */
+	private void timedQuery(QueryParameters params,
+							int offset,
+							int limit,
+							Consumer<Attributes> results) throws IOException,
+			InterruptedException, IncompatibleConnectionException, GeneralSecurityException
+	{
+		Backend backend = getBackend();
+		boolean success = false;
+
+		backend.begin();
+		long start = System.currentTimeMillis();
+		try {
+			query(params, offset, limit, results);
+			success = true;
+
+			backend.getBreaker().recordSuccess();
+		}
+		catch (IOException | IncompatibleConnectionException | GeneralSecurityException ex) {
+			backend.getBreaker().recordFailure();
+
+			throw ex;
+		}
+		finally {
+			backend.end(System.currentTimeMillis() - start, success);
+		}
+	}
+
+	private void query(QueryParameters params,
+					   int offset,
+					   int limit,
+					   Consumer<Attributes> results) throws IOException,
+			InterruptedException, IncompatibleConnectionException, GeneralSecurityException
 	{
 		Association assoc = connect();
 		try {
-			ResponseHandler handler = new ResponseHandler(assoc, params);
+			ResponseHandler handler = new ResponseHandler(assoc, offset, limit, results);
 			
 			Attributes query = new Attributes();
 			if (params.getLevel().equals(STUDY)) {
@@ -102,7 +408,13 @@ public class FindScu extends Scu
 						null,
 						handler);
 
-			return handler.results;
+			// Results are only complete once the final response arrives
+			assoc.waitForOutstandingRSP();
+		}
+		catch (IOException | InterruptedException | RuntimeException ex) {
+			discard();
+
+			throw ex;
 		}
 		finally {
 			releaseGracefully();
@@ -111,7 +423,7 @@ public class FindScu extends Scu
 
 	private static class ResponseHandler extends DimseRSPHandler
 	{
-		private final List<Attributes> results = new ArrayList();
+		private final Consumer<Attributes> results;
 
 		private final int offset;
 
@@ -119,12 +431,18 @@ public class FindScu extends Scu
 
 		private int index;
 
-		private ResponseHandler(Association assoc, QueryParameters params)
+		private int count;
+
+		private ResponseHandler(Association assoc,
+								int offset,
+								int limit,
+								Consumer<Attributes> results)
 		{
 			super(assoc.nextMessageID());
 
-			this.offset = params.getOffset();
-			this.limit = params.getLimit();
+			this.offset = offset;
+			this.limit = limit;
+			this.results = results;
 		}
 
 		@Override
@@ -134,20 +452,40 @@ public class FindScu extends Scu
 			super.onDimseRSP(as, cmd, data);
 
 			if (index++ >= offset) {
-				if (limit == 0 || results.size() < limit) {
+				if (limit == 0 || count < limit) {
 					int status = cmd.getInt(Tag.Status, -1);
 					if(Status.isPending(status)) {
-						results.add(data);
+						results.accept(data);
+						count++;
+
+						if (count == limit) {
+							cancelQuery(as);
+						}
 					}
 
 				}
 				else {
-					// TODO: Add support for issuing a cancel
 					logger.debug("Ignoring: {}", data);
 				}
 			}
 		}
 
+		/**
+		 * Ask the remote AE to stop sending matches. The remote AE ends the
+		 * query with a cancel status, matches already in flight are ignored.
+		 */
+		private void cancelQuery(Association as)
+		{
+			try {
+				logger.debug("Limit of {} reached. Sending C-CANCEL.", limit);
+
+				super.cancel(as);
+			}
+			catch (IOException ex) {
+				logger.debug("Unable to send C-CANCEL", ex);
+			}
+		}
+
 	}
 
 	private void ensure(Attributes attr, AttributeId attrIds[])
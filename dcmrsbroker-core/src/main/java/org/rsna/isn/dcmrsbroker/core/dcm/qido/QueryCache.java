@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.apache.commons.lang3.time.DateUtils;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomEncodingOptions;
+import org.dcm4che3.json.JSONWriter;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of query results.
+ * <p>
+ * Results are kept for a configurable time and the least recently used
+ * results are evicted once the cache exceeds its size limit. A result is
+ * invalidated when an object of a study it contains, or of a study that
+ * matches its query, is stored. Identical queries that arrive while the
+ * query is running share its result.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class QueryCache
+{
+	private static final Logger logger = LoggerFactory.getLogger(QueryCache.class);
+
+	private static final long ttl = Environment.getPropertyAsInt(QIDO_CACHE_TTL_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long maxSize = Environment.getPropertyAsLong(QIDO_CACHE_MAX_SIZE_IN_BYTES);
+
+	private static final LinkedHashMap<String, Entry> entries
+			= new LinkedHashMap(16, 0.75f, true);
+
+	private static final ConcurrentHashMap<String, CompletableFuture<List<Attributes>>> running
+			= new ConcurrentHashMap();
+
+	/**
+	 * Maximum number of stored objects remembered while queries are running
+	 */
+	private static final int MAX_RECENT = 1000;
+
+	/**
+	 * Objects stored while queries were running. A result is not cached if
+	 * one of them invalidates it.
+	 */
+	private static final ArrayDeque<Invalidation> recent = new ArrayDeque();
+
+	private static long generation;
+
+	private static long size;
+
+	private QueryCache()
+	{
+	}
+
+	/**
+	 * Determine if query results are cached
+	 *
+	 * @return true if the cache is enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return ttl > 0;
+	}
+
+	/**
+	 * Get the results of a query from the cache, running the query if they
+	 * are not cached. If the same query is already running, its results are
+	 * used instead.
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @param cfind the SCU used to run the query
+	 * @return the results (must not be modified)
+	 * @throws Exception if the query failed
+	 */
+	public static List<Attributes> get(QueryParameters params, FindScu cfind)
+			throws Exception
+	{
+		String key = buildKey(params);
+
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && !entry.isExpired()) {
+				return entry.results;
+			}
+		}
+
+		CompletableFuture<List<Attributes>> future = new CompletableFuture();
+		CompletableFuture<List<Attributes>> existing = running.putIfAbsent(key, future);
+		if (existing != null) {
+			logger.debug("Waiting for running query {}", key);
+
+			try {
+				return existing.get();
+			}
+			catch (ExecutionException ex) {
+				throw ex.getCause() instanceof Exception
+					  ? (Exception) ex.getCause() : ex;
+			}
+		}
+
+		try {
+			long gen;
+			synchronized (entries) {
+				gen = generation;
+			}
+
+			List<Attributes> results = Collections.unmodifiableList(cfind.doQuery(params));
+			put(key, new Entry(params, results), gen);
+
+			future.complete(results);
+
+			return results;
+		}
+		catch (Exception ex) {
+			future.completeExceptionally(ex);
+
+			throw ex;
+		}
+		finally {
+			running.remove(key);
+		}
+	}
+
+	/**
+	 * Invalidate the results that contain the study of a stored object or
+	 * whose query matches the object
+	 *
+	 * @param obj the stored object (cannot be null)
+	 */
+	public static void invalidate(Attributes obj)
+	{
+		if (!isEnabled()) {
+			return;
+		}
+
+		synchronized (entries) {
+			generation++;
+
+			if (running.isEmpty()) {
+				recent.clear();
+			}
+			else {
+				Attributes copy = new Attributes(obj);
+				copy.remove(Tag.PixelData);
+
+				recent.addLast(new Invalidation(generation, copy));
+				if (recent.size() > MAX_RECENT) {
+					recent.removeFirst();
+				}
+			}
+
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.isInvalidatedBy(obj)) {
+					it.remove();
+					size -= entry.size;
+				}
+			}
+		}
+	}
+
+	private static void put(String key, Entry entry, long gen)
+	{
+		if (entry.size > maxSize) {
+			return;
+		}
+
+		synchronized (entries) {
+			if (gen != generation) {
+				// Objects were stored while the query was running
+				if (recent.isEmpty() || recent.peekFirst().generation > gen + 1) {
+					return;
+				}
+
+				for (Invalidation inv : recent) {
+					if (inv.generation > gen && entry.isInvalidatedBy(inv.obj)) {
+						return;
+					}
+				}
+			}
+
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				size -= old.size;
+			}
+			size += entry.size;
+
+			// Evict expired results and the least recently used ones
+			long now = System.currentTimeMillis();
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry eldest = it.next();
+				if (size > maxSize || eldest.isExpired(now)) {
+					it.remove();
+					size -= eldest.size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build a key that is the same for queries with the same level, keys,
+	 * included attributes, fuzzy matching, offset and limit
+	 */
+	private static String buildKey(QueryParameters params)
+	{
+		return params.getOffset() + "|" + params.getLimit() + "|"
+			   + buildQueryKey(params);
+	}
+
+	/**
+	 * Build a key that is the same for queries with the same level, keys,
+	 * included attributes and fuzzy matching, regardless of offset and limit
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @return the key
+	 */
+	static String buildQueryKey(QueryParameters params)
+	{
+		StringWriter out = new StringWriter();
+		out.write(params.getLevel().name());
+		out.write('|');
+		out.write(Boolean.toString(params.isFuzzyMatchingEnabled()));
+		out.write('|');
+		write(out, params.getParameters());
+		out.write('|');
+		write(out, params.getIncludedAttributes());
+
+		return out.toString();
+	}
+
+	private static void write(StringWriter out, Attributes attrs)
+	{
+		// Attributes are kept in tag order, so equal keys serialize the same
+		try (JsonGenerator gen = Json.createGenerator(out)) {
+			new JSONWriter(gen).write(attrs);
+		}
+	}
+
+	private static class Entry
+	{
+		private final Attributes keys;
+
+		private final boolean fuzzy;
+
+		private final List<Attributes> results;
+
+		private final Set<String> studyUids = new HashSet();
+
+		private final long size;
+
+		private final long expires = System.currentTimeMillis() + ttl;
+
+		private Entry(QueryParameters params, List<Attributes> results)
+		{
+			this.keys = params.getParameters();
+			this.fuzzy = params.isFuzzyMatchingEnabled();
+			this.results = results;
+
+			long tmp = 0;
+			for (Attributes result : results) {
+				tmp += result.calcLength(DicomEncodingOptions.DEFAULT, true);
+
+				String studyUid = result.getString(Tag.StudyInstanceUID);
+				if (studyUid != null) {
+					studyUids.add(studyUid);
+				}
+			}
+			this.size = tmp;
+		}
+
+		private boolean isInvalidatedBy(Attributes obj)
+		{
+			return studyUids.contains(obj.getString(Tag.StudyInstanceUID))
+				   || obj.matches(keys, fuzzy, true);
+		}
+
+		private boolean isExpired()
+		{
+			return isExpired(System.currentTimeMillis());
+		}
+
+		private boolean isExpired(long now)
+		{
+			return now >= expires;
+		}
+
+	}
+
+	private static class Invalidation
+	{
+		private final long generation;
+
+		private final Attributes obj;
+
+		private Invalidation(long generation, Attributes obj)
+		{
+			this.generation = generation;
+			this.obj = obj;
+		}
+
+	}
+
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomEncodingOptions;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side snapshots of query results used to page through them.
+ * <p>
+ * The first page of a query runs the query without offset and limit and
+ * keeps the matches under an opaque cursor. Later pages of the same query,
+ * or pages requested with the cursor, are served from the snapshot without
+ * querying the remote AE again. Matches are written to a temporary file as
+ * they arrive once the snapshot exceeds the spill threshold, and the query
+ * is stopped once the snapshot holds the maximum number of matches.
+ * Snapshots are not invalidated by stored objects, so all pages of a cursor
+ * are consistent.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class QueryCursor
+{
+	private static final Logger logger = LoggerFactory.getLogger(QueryCursor.class);
+
+	private static final long ttl = Environment.getPropertyAsInt(QIDO_CURSOR_TTL_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long spillThreshold = Environment.getPropertyAsLong(QIDO_CURSOR_SPILL_THRESHOLD_IN_BYTES);
+
+	private static final int maxMatches = Environment.getPropertyAsInt(QIDO_CURSOR_MAX_MATCHES);
+
+	private static final long CLEANUP_INTERVAL_IN_SECS = 10;
+
+	private static final ConcurrentHashMap<String, Snapshot> cursors
+			= new ConcurrentHashMap();
+
+	private static final ConcurrentHashMap<String, CompletableFuture<Snapshot>> queries
+			= new ConcurrentHashMap();
+
+	static {
+		if (ttl > 0) {
+			ExecutorServiceFactory.getScheduledService()
+					.scheduleWithFixedDelay(QueryCursor::cleanup,
+											CLEANUP_INTERVAL_IN_SECS,
+											CLEANUP_INTERVAL_IN_SECS,
+											TimeUnit.SECONDS);
+		}
+	}
+
+	private QueryCursor()
+	{
+	}
+
+	/**
+	 * Determine if paging cursors are enabled
+	 *
+	 * @return true if cursors are enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return ttl > 0;
+	}
+
+	/**
+	 * Get a page of the matches of a query. If the parameters include a
+	 * known cursor, the page is taken from its snapshot. Otherwise the
+	 * snapshot of the same query is used, running the query if there is none.
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @param cfind the SCU used to run the query
+	 * @return the page
+	 * @throws Exception if the query failed
+	 */
+	public static Page getPage(QueryParameters params, FindScu cfind)
+			throws Exception
+	{
+		Snapshot snapshot = null;
+		if (StringUtils.isNotEmpty(params.getCursor())) {
+			snapshot = cursors.get(params.getCursor());
+			if (snapshot == null || snapshot.isExpired()) {
+				logger.debug("Cursor {} is unknown or expired", params.getCursor());
+
+				snapshot = null;
+			}
+		}
+
+		if (snapshot == null) {
+			snapshot = getSnapshot(params, cfind);
+		}
+
+		List<Attributes> results = snapshot.read(params.getOffset(), params.getLimit());
+		boolean truncated = snapshot.truncated
+							&& params.getOffset() + results.size() >= snapshot.size();
+
+		return new Page(snapshot.token, results, truncated);
+	}
+
+	private static Snapshot getSnapshot(QueryParameters params, FindScu cfind)
+			throws Exception
+	{
+		String key = QueryCache.buildQueryKey(params);
+
+		while (true) {
+			CompletableFuture<Snapshot> future = new CompletableFuture();
+			CompletableFuture<Snapshot> existing = queries.putIfAbsent(key, future);
+			if (existing == null) {
+				try (QueryStream stream = cfind.openQuery(params, 0, 0)) {
+					Snapshot snapshot = new Snapshot(key, stream);
+					snapshot.future = future;
+					cursors.put(snapshot.token, snapshot);
+
+					future.complete(snapshot);
+
+					return snapshot;
+				}
+				catch (Exception ex) {
+					queries.remove(key, future);
+					future.completeExceptionally(ex);
+
+					throw ex;
+				}
+			}
+
+			try {
+				Snapshot snapshot = existing.get();
+				if (!snapshot.isExpired()) {
+					return snapshot;
+				}
+
+				queries.remove(key, existing);
+			}
+			catch (ExecutionException ex) {
+				throw ex.getCause() instanceof Exception
+					  ? (Exception) ex.getCause() : ex;
+			}
+		}
+	}
+
+	private static void cleanup()
+	{
+		cursors.values().removeIf(snapshot -> {
+			if (!snapshot.isExpired()) {
+				return false;
+			}
+
+			queries.remove(snapshot.key, snapshot.future);
+			snapshot.delete();
+
+			return true;
+		});
+	}
+
+	/**
+	 * A page of matches
+	 */
+	public static class Page
+	{
+		private final String cursor;
+
+		private final List<Attributes> results;
+
+		private final boolean truncated;
+
+		private Page(String cursor, List<Attributes> results, boolean truncated)
+		{
+			this.cursor = cursor;
+			this.results = results;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * Get the cursor of the snapshot the page was taken from
+		 *
+		 * @return the cursor
+		 */
+		public String getCursor()
+		{
+			return cursor;
+		}
+
+		/**
+		 * Get the matches of the page
+		 *
+		 * @return the matches
+		 */
+		public List<Attributes> getResults()
+		{
+			return results;
+		}
+
+		/**
+		 * Determine if the page is the last one of a snapshot that did not
+		 * keep all matches of the query
+		 *
+		 * @return true if there were more matches than the snapshot holds
+		 */
+		public boolean isTruncated()
+		{
+			return truncated;
+		}
+
+	}
+
+	private static class Snapshot
+	{
+		private final String token = UUID.randomUUID().toString();
+
+		private final String key;
+
+		private final long expires = System.currentTimeMillis() + ttl;
+
+		private CompletableFuture<Snapshot> future;
+
+		/**
+		 * The matches or null if they were written to the file
+		 */
+		private List<Attributes> results = new ArrayList();
+
+		private File file;
+
+		/**
+		 * Start of each match in the file, followed by the end of the file
+		 */
+		private long positions[];
+
+		private int count;
+
+		private boolean truncated;
+
+		private Snapshot(String key, QueryStream stream)
+				throws IOException, InterruptedException
+		{
+			this.key = key;
+
+			long size = 0;
+			CountingOutputStream cos = null;
+			DicomOutputStream dos = null;
+			try {
+				Attributes match;
+				while ((match = stream.next()) != null) {
+					if (maxMatches > 0 && size() >= maxMatches) {
+						// Closing the stream stops the query
+						truncated = true;
+
+						break;
+					}
+
+					if (dos != null) {
+						write(cos, dos, match);
+
+						continue;
+					}
+
+					results.add(match);
+					size += match.calcLength(DicomEncodingOptions.DEFAULT, true);
+					if (size > spillThreshold) {
+						file = File.createTempFile("qido-", ".cursor");
+						positions = new long[Math.max(64, results.size() * 2)];
+
+						cos = new CountingOutputStream(
+								new BufferedOutputStream(new FileOutputStream(file)));
+						dos = new DicomOutputStream(cos, UID.ExplicitVRLittleEndian);
+						for (Attributes held : results) {
+							write(cos, dos, held);
+						}
+
+						results = null;
+					}
+				}
+
+				if (dos != null) {
+					dos.flush();
+					positions[count] = cos.getByteCount();
+					dos.close();
+
+					logger.debug("Wrote {} matches ({} bytes) to {}",
+								 count, positions[count], file);
+				}
+			}
+			catch (IOException | InterruptedException | RuntimeException ex) {
+				IOUtils.closeQuietly(dos != null ? dos : cos);
+				delete();
+
+				throw ex;
+			}
+
+			if (results != null) {
+				results = Collections.unmodifiableList(results);
+			}
+
+			if (truncated) {
+				logger.info("Kept the first {} matches of query {}", maxMatches, key);
+			}
+		}
+
+		private void write(CountingOutputStream cos,
+						   DicomOutputStream dos,
+						   Attributes match) throws IOException
+		{
+			// One more slot for the end of the file
+			if (count + 1 >= positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+
+			positions[count++] = cos.getByteCount();
+			dos.writeDataset(null, match);
+		}
+
+		private int size()
+		{
+			return results != null ? results.size() : count;
+		}
+
+		private List<Attributes> read(int offset, int limit) throws IOException
+		{
+			int from = Math.min(Math.max(0, offset), size());
+			int to = limit > 0 ? (int) Math.min((long) from + limit, size()) : size();
+
+			if (results != null) {
+				return results.subList(from, to);
+			}
+
+			List<Attributes> page = new ArrayList();
+			if (from == to) {
+				return page;
+			}
+
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				IOUtils.skipFully(in, positions[from]);
+
+				DicomInputStream din = new DicomInputStream(in, UID.ExplicitVRLittleEndian);
+				for (int i = from; i < to; i++) {
+					page.add(din.readDataset((int) (positions[i + 1] - positions[i]), -1));
+				}
+			}
+
+			return page;
+		}
+
+		private boolean isExpired()
+		{
+			return System.currentTimeMillis() >= expires;
+		}
+
+		private void delete()
+		{
+			if (file != null && !FileUtils.deleteQuietly(file)) {
+				// Still being read
+				file.deleteOnExit();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Attributes;
+
+/**
+ * Matches of a running query, handed from the association to the HTTP
+ * response as they arrive.
+ * <p>
+ * The queue between the two is bounded. If the client reads slower than the
+ * remote AE sends, the association stops reading until there is room again,
+ * so the memory used per query does not depend on the number of matches.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class QueryStream implements AutoCloseable
+{
+	private static final int CAPACITY = 64;
+
+	private static final long OFFER_INTERVAL = 100;
+
+	/**
+	 * Marks the end of the matches
+	 */
+	private static final Attributes END = new Attributes(0);
+
+	private final BlockingQueue<Attributes> queue = new ArrayBlockingQueue(CAPACITY);
+
+	private volatile boolean closed;
+
+	private volatile boolean delivered;
+
+	private volatile Throwable error;
+
+	private Future<?> task;
+
+	private boolean finished;
+
+	QueryStream()
+	{
+	}
+
+	void setTask(Future<?> task)
+	{
+		this.task = task;
+	}
+
+	/**
+	 * Add a match. Blocks while the queue is full.
+	 *
+	 * @param match the match
+	 */
+	void put(Attributes match)
+	{
+		try {
+			while (!closed) {
+				if (queue.offer(match, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) {
+					delivered = true;
+
+					return;
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Determine if any match has been added
+	 *
+	 * @return true if a match was added
+	 */
+	boolean isDelivered()
+	{
+		return delivered;
+	}
+
+	/**
+	 * Mark the end of the matches
+	 *
+	 * @param error the error the query failed with or null if it succeeded
+	 */
+	void finish(Throwable error)
+	{
+		this.error = error;
+
+		put(END);
+	}
+
+	/**
+	 * Get the next match, waiting for it to arrive
+	 *
+	 * @return the match or null if there are no more matches
+	 * @throws IOException if the query failed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Attributes next() throws IOException, InterruptedException
+	{
+		if (finished) {
+			return null;
+		}
+
+		Attributes match = queue.take();
+		if (match != END) {
+			return match;
+		}
+
+		finished = true;
+
+		Throwable tmp = error;
+		if (tmp instanceof IOException) {
+			throw (IOException) tmp;
+		}
+		else if (tmp != null) {
+			throw new IOException("Query failed", tmp);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stop the query if it is still running
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+
+		if (task != null && !task.isDone()) {
+			// Aborts the association
+			task.cancel(true);
+		}
+
+		queue.clear();
+	}
+
+}
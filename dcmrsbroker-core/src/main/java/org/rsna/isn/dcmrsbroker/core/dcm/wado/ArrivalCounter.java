@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.StringUtils;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+
+/**
+ * Counts the objects received for a retrieve request.
+ * <p>
+ * The C-STORE handler publishes each object that is written to the cache.
+ * Retrieves waiting for objects to arrive block on the counter instead of
+ * repeatedly scanning the cache directory.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class ArrivalCounter implements AutoCloseable
+{
+	private static final ConcurrentHashMap<String, Set<ArrivalCounter>> counters
+			= new ConcurrentHashMap();
+
+	private final String studyUid;
+
+	private final String seriesUid;
+
+	private final String instanceUid;
+
+	private final Set<String> arrived = new HashSet();
+
+	private final List<Path> files = new ArrayList();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition changed = lock.newCondition();
+
+	private volatile Runnable listener;
+
+	private ArrivalCounter(RetrieveParameters params)
+	{
+		this.studyUid = params.getStudyUid();
+		this.seriesUid = params.getSeriesUid();
+		this.instanceUid = params.getInstanceUid();
+	}
+
+	/**
+	 * Start counting the objects received for a request. Objects that are
+	 * already in the cache are included in the count.
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @return the counter (must be closed when no longer needed)
+	 * @throws IOException if there was an error listing the cached objects
+	 */
+	static ArrivalCounter open(RetrieveParameters params) throws IOException
+	{
+		ArrivalCounter counter = new ArrivalCounter(params);
+
+		counters.compute(counter.studyUid, (k, v) -> {
+			Set<ArrivalCounter> set = v != null ? v : ConcurrentHashMap.newKeySet();
+			set.add(counter);
+
+			return set;
+		});
+
+		// Registered first so objects written during the listing are not missed
+		counter.sync(params);
+
+		return counter;
+	}
+
+	/**
+	 * Add objects that are in the cache but have not been counted
+	 *
+	 * @param params the request parameters the counter was opened with
+	 * @throws IOException if there was an error listing the cached objects
+	 */
+	void sync(RetrieveParameters params) throws IOException
+	{
+		for (Path file : CacheManager.getInstanceFiles(params)) {
+			String uid = StringUtils.removeEnd(file.getFileName().toString(), ".dcm");
+
+			arrived(uid, file);
+		}
+	}
+
+	/**
+	 * Publish the arrival of an object
+	 *
+	 * @param studyUid the study UID of the object
+	 * @param seriesUid the series UID of the object
+	 * @param instanceUid the SOP instance UID of the object
+	 */
+	static void publish(String studyUid, String seriesUid, String instanceUid)
+	{
+		Set<ArrivalCounter> set = counters.get(studyUid);
+		if (set == null) {
+			return;
+		}
+
+		for (ArrivalCounter counter : set) {
+			if (counter.matches(seriesUid, instanceUid)) {
+				counter.arrived(instanceUid,
+								CacheManager.buildFile(studyUid,
+													   seriesUid,
+													   instanceUid,
+													   "dcm").toPath());
+			}
+		}
+	}
+
+	private boolean matches(String seriesUid, String instanceUid)
+	{
+		if (StringUtils.isNotBlank(this.seriesUid)
+			&& !this.seriesUid.equals(seriesUid)) {
+			return false;
+		}
+		else if (StringUtils.isNotBlank(this.instanceUid)
+				 && !this.instanceUid.equals(instanceUid)) {
+			return false;
+		}
+		else {
+			return true;
+		}
+	}
+
+	private void arrived(String instanceUid, Path file)
+	{
+		boolean added;
+
+		lock.lock();
+		try {
+			added = arrived.add(instanceUid);
+			if (added) {
+				files.add(file);
+				changed.signalAll();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		Runnable tmp = listener;
+		if (added && tmp != null) {
+			tmp.run();
+		}
+	}
+
+	/**
+	 * Set a listener that is called (outside the counter's lock) whenever the
+	 * count changes
+	 *
+	 * @param listener the listener (null to remove)
+	 */
+	void setListener(Runnable listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Get the number of distinct objects received so far
+	 *
+	 * @return the count
+	 */
+	int getCount()
+	{
+		lock.lock();
+		try {
+			return arrived.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the objects that have not been received yet
+	 *
+	 * @param expected the SOP instance UIDs of the expected objects
+	 * @return the SOP instance UIDs of the expected objects that have not
+	 * been received
+	 */
+	Set<String> getMissing(Collection<String> expected)
+	{
+		Set<String> missing = new HashSet();
+
+		lock.lock();
+		try {
+			for (String uid : expected) {
+				if (!arrived.contains(uid)) {
+					missing.add(uid);
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		return missing;
+	}
+
+	/**
+	 * Get a received object
+	 *
+	 * @param index the position of the object in the order of arrival (less
+	 * than the count)
+	 * @return the cache file of the object
+	 */
+	Path getFile(int index)
+	{
+		lock.lock();
+		try {
+			return files.get(index);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the count differs from the given value or the timeout
+	 * expires
+	 *
+	 * @param lastCount the last count seen by the caller
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return the current count
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	int awaitChange(int lastCount, long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while (arrived.size() == lastCount && nanos > 0) {
+				nanos = changed.awaitNanos(nanos);
+			}
+
+			return arrived.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop counting
+	 */
+	@Override
+	public void close()
+	{
+		counters.computeIfPresent(studyUid, (k, v) -> {
+			v.remove(this);
+
+			return v.isEmpty() ? null : v;
+		});
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+
+/**
+ * Hands out the objects of a request in the order they arrive in the cache
+ * while the retrieve is running. Objects that were already cached when the
+ * queue was opened come first.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class ArrivalQueue implements AutoCloseable
+{
+	private final RetrieveParameters params;
+
+	private final RetrieveJob job;
+
+	private final ArrivalCounter counter;
+
+	private int next;
+
+	private boolean synced;
+
+	private ArrivalQueue(RetrieveParameters params,
+						 RetrieveJob job,
+						 ArrivalCounter counter)
+	{
+		this.params = params;
+		this.job = job;
+		this.counter = counter;
+	}
+
+	/**
+	 * Start queueing the objects of a request
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @param job the job retrieving the objects (cannot be null). May be the
+	 * job of a larger request.
+	 * @return the queue (must be closed when no longer needed)
+	 * @throws IOException if there was an error listing the cached objects
+	 */
+	public static ArrivalQueue open(RetrieveParameters params, RetrieveJob job)
+			throws IOException
+	{
+		return new ArrivalQueue(params, job, ArrivalCounter.open(params));
+	}
+
+	/**
+	 * Wait until an object is available or the retrieve has finished
+	 *
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return true if an object is available
+	 * @throws Exception if interrupted or the cache could not be listed
+	 */
+	public boolean await(long timeout) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long version = job.getVersion();
+			if (next < counter.getCount()) {
+				return true;
+			}
+			else if (job.getResult() != null) {
+				if (!synced) {
+					// Pick up objects that were stored just before the job finished
+					counter.sync(params);
+					synced = true;
+
+					continue;
+				}
+
+				return false;
+			}
+
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+
+			job.awaitChange(version, left);
+		}
+	}
+
+	/**
+	 * Get the next object, waiting for it if needed
+	 *
+	 * @return the cache file of the object or null if the retrieve has
+	 * finished and all of its objects have been taken
+	 * @throws Exception if interrupted or the cache could not be listed
+	 */
+	public Path take() throws Exception
+	{
+		while (!await(Long.MAX_VALUE / 2)) {
+			if (job.getResult() != null) {
+				return null;
+			}
+		}
+
+		return counter.getFile(next++);
+	}
+
+	/**
+	 * Get the final cache entry of the retrieve
+	 *
+	 * @return the entry or null if the retrieve is still running
+	 */
+	public CacheEntry getResult()
+	{
+		return job.getResult();
+	}
+
+	@Override
+	public void close()
+	{
+		counter.close();
+	}
+
+}
@@ -25,6 +25,7 @@ import org.dcm4che3.net.Association;
 import org.dcm4che3.net.PDVInputStream;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.rsna.isn.dcmrsbroker.core.dcm.qido.QueryCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +54,18 @@ public class CStoreHandler extends BasicCStoreSCP
 		Attributes obj = din.readDataset(-1, -1);
 
 		CacheManager.writeObject(obj, tsuid, classUid);
+
+		MetadataIndex.add(obj);
+
+		String studyUid = obj.getString(Tag.StudyInstanceUID);
+		String seriesUid = obj.getString(Tag.SeriesInstanceUID);
+		String instanceUid = obj.getString(Tag.SOPInstanceUID);
+
+		StudyInventory.add(studyUid, seriesUid, instanceUid);
+
+		ArrivalCounter.publish(studyUid, seriesUid, instanceUid);
+
+		QueryCache.invalidate(obj);
 	}
 
 }
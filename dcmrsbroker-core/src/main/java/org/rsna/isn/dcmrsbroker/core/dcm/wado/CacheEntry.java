@@ -17,7 +17,6 @@ package org.rsna.isn.dcmrsbroker.core.dcm.wado;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.stream.Stream;
@@ -29,45 +28,44 @@ import java.util.stream.Stream;
  * @since 1.0.0
  * @version 1.0.0
  */
-public class CacheEntry implements Serializable
+public class CacheEntry
 {
 
 	/**
 	 * Create an entry indicating the retrieve request is in progress
 	 *
-	 * @param remaining the number of objects remaining to be transferred
-	 * @param completed the number of objects that were successfully transferred
-	 * @param failed the number of objects that failed to transferred
-	 * @param warning the number of object that transferred but had warnings
-	 *
+	 * @param job the job performing the retrieve. The counts of the entry
+	 * are read from the job.
 	 */
-	CacheEntry(int remaining,
-			   int completed,
-			   int failed,
-			   int warning)
+	CacheEntry(RetrieveJob job)
 	{
 		this.status = Status.IN_PROGRESS;
+		this.studyUid = null;
 
-		this.remaining = remaining;
-		this.completed = completed;
-		this.failed = failed;
-		this.warning = warning;
+		this.remaining = -1;
+		this.completed = -1;
+		this.failed = -1;
+		this.warning = -1;
 
 		this.root = null;
 		this.error = null;
+		this.job = job;
 	}
 
 	/**
 	 * Create an entry indicating the retrieve request has been completed
 	 *
+	 * @param studyUid the study the files belong to
 	 * @param root the location of the resulting files
 	 * @param completed the number of objects that were successfully transferred
 	 */
-	CacheEntry(File root,
+	CacheEntry(String studyUid,
+			   File root,
 			   int completed,
 			   int warning)
 	{
 		this.status = Status.COMPLETED;
+		this.studyUid = studyUid;
 
 		this.remaining = 0;
 		this.completed = completed;
@@ -76,6 +74,7 @@ public class CacheEntry implements Serializable
 
 		this.root = root;
 		this.error = null;
+		this.job = null;
 	}
 
 	/**
@@ -92,6 +91,7 @@ public class CacheEntry implements Serializable
 			   int warning)
 	{
 		this.status = Status.FAILED;
+		this.studyUid = null;
 
 		this.remaining = 0;
 		this.completed = completed;
@@ -100,6 +100,32 @@ public class CacheEntry implements Serializable
 
 		this.root = null;
 		this.error = error;
+		this.job = null;
+	}
+
+	private final String studyUid;
+
+	private final RetrieveJob job;
+
+	/**
+	 * Get the job performing the retrieve
+	 *
+	 * @return the job or null if the retrieve is not in progress
+	 */
+	public RetrieveJob getJob()
+	{
+		return job;
+	}
+
+	/**
+	 * Record that the files of this entry were accessed by a client. This
+	 * pushes back the expiry of the study in the cache.
+	 */
+	public void touch()
+	{
+		if (studyUid != null) {
+			CacheReaper.recordAccess(studyUid);
+		}
 	}
 
 	private final File root;
@@ -156,7 +182,7 @@ public class CacheEntry implements Serializable
 	 */
 	public int getRemaining()
 	{
-		return remaining;
+		return job != null ? job.getRemaining() : remaining;
 	}
 
 	private final int completed;
@@ -170,7 +196,7 @@ public class CacheEntry implements Serializable
 	 */
 	public int getCompleted()
 	{
-		return completed;
+		return job != null ? job.getCompleted() : completed;
 	}
 
 	private final int failed;
@@ -183,7 +209,7 @@ public class CacheEntry implements Serializable
 	 */
 	public int getFailed()
 	{
-		return failed;
+		return job != null ? job.getFailed() : failed;
 	}
 
 	private final int warning;
@@ -196,7 +222,7 @@ public class CacheEntry implements Serializable
 	 */
 	public int getWarning()
 	{
-		return warning;
+		return job != null ? job.getWarning() : warning;
 	}
 
 	public static enum Status
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of cache entries backed by an append-only journal.
+ * <p>
+ * Lookups are served entirely from memory. Every state change is appended to
+ * the journal so the index can be rebuilt after a restart. The journal is
+ * periodically rewritten to contain only the live entries.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class CacheIndex
+{
+	private static final Logger logger = LoggerFactory.getLogger(CacheIndex.class);
+
+	/**
+	 * Name of the journal file inside the cache directory
+	 */
+	static final String JOURNAL_NAME = ".cache.journal";
+
+	private static final byte PUT = 1;
+
+	private static final byte REMOVE_STUDY = 2;
+
+	private static final byte REMOVE = 3;
+
+	private static final int MAX_ERROR_LENGTH = 8192;
+
+	private static final int MIN_COMPACT_RECORDS = 10000;
+
+	private final ConcurrentHashMap<String, Map<String, CacheEntry>> studies
+			= new ConcurrentHashMap();
+
+	private final File journalFile;
+
+	private DataOutputStream journal;
+
+	private int records;
+
+	private int liveRecords;
+
+	CacheIndex(File cacheDir)
+	{
+		this.journalFile = new File(cacheDir, JOURNAL_NAME);
+	}
+
+	/**
+	 * Load the journal (if any) and open it for appending.
+	 *
+	 * @throws IOException if the journal could not be read or opened
+	 */
+	synchronized void open() throws IOException
+	{
+		if (journalFile.isFile()) {
+			replay();
+		}
+
+		compact();
+	}
+
+	private void replay() throws IOException
+	{
+		int count = 0;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(journalFile)))) {
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+				}
+				catch (EOFException ex) {
+					break;
+				}
+
+				try {
+					String studyUid = in.readUTF();
+					if (op == REMOVE_STUDY) {
+						studies.remove(studyUid);
+					}
+					else if (op == REMOVE) {
+						removeKey(studyUid, in.readUTF());
+					}
+					else if (op == PUT) {
+						String key = in.readUTF();
+						CacheEntry entry = readEntry(in, studyUid, key);
+						if (entry != null) {
+							getStudy(studyUid).put(key, entry);
+						}
+						else {
+							removeKey(studyUid, key);
+						}
+					}
+					else {
+						logger.warn("Unknown journal record type {} in {}. "
+									+ "Ignoring remainder of journal.",
+									op, journalFile);
+
+						break;
+					}
+				}
+				catch (EOFException ex) {
+					logger.warn("Truncated record at end of {}", journalFile);
+
+					break;
+				}
+				catch (StreamCorruptedException | UTFDataFormatException ex) {
+					logger.warn("Corrupt journal record in {}. Ignoring remainder "
+								+ "of journal.", journalFile, ex);
+
+					break;
+				}
+
+				count++;
+			}
+		}
+
+		logger.info("Loaded {} journal record(s) from {}", count, journalFile);
+	}
+
+	private CacheEntry readEntry(DataInputStream in, String studyUid, String key)
+			throws IOException
+	{
+		int ordinal = in.readByte();
+		if (ordinal < 0 || ordinal >= CacheEntry.Status.values().length) {
+			throw new StreamCorruptedException("Invalid status: " + ordinal);
+		}
+
+		CacheEntry.Status status = CacheEntry.Status.values()[ordinal];
+		int remaining = in.readInt();
+		int completed = in.readInt();
+		int failed = in.readInt();
+		int warning = in.readInt();
+		String error = in.readUTF();
+
+		switch (status) {
+			case COMPLETED:
+				String seriesUid = StringUtils.substringBefore(key, "/");
+				String instanceUid = StringUtils.substringAfter(key, "/");
+
+				return new CacheEntry(studyUid,
+									  CacheManager.buildFile(studyUid,
+															 seriesUid,
+															 instanceUid,
+															 "dcm"),
+									  completed,
+									  warning);
+			case FAILED:
+				return new CacheEntry(error, completed, failed, warning);
+			default:
+				// The retrieve did not survive the restart
+				return null;
+		}
+	}
+
+	private Map<String, CacheEntry> getStudy(String studyUid)
+	{
+		return studies.computeIfAbsent(studyUid, k -> new ConcurrentHashMap());
+	}
+
+	private void removeKey(String studyUid, String key)
+	{
+		Map<String, CacheEntry> study = studies.get(studyUid);
+		if (study != null) {
+			study.remove(key);
+		}
+	}
+
+	private static String toKey(String seriesUid, String instanceUid)
+	{
+		if (StringUtils.isBlank(seriesUid)) {
+			return "";
+		}
+		else if (StringUtils.isBlank(instanceUid)) {
+			return seriesUid;
+		}
+		else {
+			return seriesUid + "/" + instanceUid;
+		}
+	}
+
+	/**
+	 * Get the entry stored for the exact level specified by the given UIDs
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param seriesUid the series UID (can be blank for study level)
+	 * @param instanceUid the instance UID (can be blank for series level)
+	 * @return the entry or null if none is stored
+	 */
+	CacheEntry get(String studyUid, String seriesUid, String instanceUid)
+	{
+		Map<String, CacheEntry> study = studies.get(studyUid);
+		if (study == null) {
+			return null;
+		}
+
+		return study.get(toKey(seriesUid, instanceUid));
+	}
+
+	/**
+	 * Store an entry and record it in the journal
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param seriesUid the series UID (can be blank for study level)
+	 * @param instanceUid the instance UID (can be blank for series level)
+	 * @param entry the entry (cannot be null)
+	 * @throws IOException if the journal could not be updated
+	 */
+	synchronized void put(String studyUid,
+						  String seriesUid,
+						  String instanceUid,
+						  CacheEntry entry) throws IOException
+	{
+		String key = toKey(seriesUid, instanceUid);
+
+		CacheEntry previous = getStudy(studyUid).put(key, entry);
+
+		if (previous != null
+			&& previous.getStatus() == IN_PROGRESS
+			&& entry.getStatus() == IN_PROGRESS) {
+			// Progress updates are not replayed so there is no need to log them
+			return;
+		}
+
+		DataOutputStream out = getJournal();
+		out.writeByte(PUT);
+		out.writeUTF(studyUid);
+		out.writeUTF(key);
+		writeEntry(out, entry);
+		out.flush();
+
+		records++;
+	}
+
+	/**
+	 * Remove the entry stored for the exact level specified by the given UIDs
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param seriesUid the series UID (can be blank for study level)
+	 * @param instanceUid the instance UID (can be blank for series level)
+	 * @throws IOException if the journal could not be updated
+	 */
+	synchronized void remove(String studyUid,
+							 String seriesUid,
+							 String instanceUid) throws IOException
+	{
+		String key = toKey(seriesUid, instanceUid);
+
+		Map<String, CacheEntry> study = studies.get(studyUid);
+		if (study == null || study.remove(key) == null) {
+			return;
+		}
+
+		DataOutputStream out = getJournal();
+		out.writeByte(REMOVE);
+		out.writeUTF(studyUid);
+		out.writeUTF(key);
+		out.flush();
+
+		records++;
+	}
+
+	/**
+	 * Get a snapshot of the entries stored for a study. Keys are the series
+	 * UID and instance UID joined by a slash. The study level entry uses an
+	 * empty key.
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @return the entries (never null)
+	 */
+	Map<String, CacheEntry> getEntries(String studyUid)
+	{
+		Map<String, CacheEntry> study = studies.get(studyUid);
+		if (study == null) {
+			return Collections.emptyMap();
+		}
+
+		return new HashMap(study);
+	}
+
+	/**
+	 * Remove all entries associated with a study
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @throws IOException if the journal could not be updated
+	 */
+	synchronized void removeStudy(String studyUid) throws IOException
+	{
+		if (studies.remove(studyUid) == null) {
+			return;
+		}
+
+		DataOutputStream out = getJournal();
+		out.writeByte(REMOVE_STUDY);
+		out.writeUTF(studyUid);
+		out.flush();
+
+		records++;
+	}
+
+	/**
+	 * Determine if any of the entries stored for a study has the given status
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param status the status (cannot be null)
+	 * @return true if at least one entry has the status
+	 */
+	boolean contains(String studyUid, CacheEntry.Status status)
+	{
+		Map<String, CacheEntry> study = studies.get(studyUid);
+		if (study == null) {
+			return false;
+		}
+
+		for (CacheEntry entry : study.values()) {
+			if (entry.getStatus() == status) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the UIDs of all studies with at least one entry
+	 *
+	 * @return an unmodifiable view of the study UIDs
+	 */
+	Set<String> getStudyUids()
+	{
+		return Collections.unmodifiableSet(studies.keySet());
+	}
+
+	/**
+	 * Get the journal, opening it for appending if it is not open. The
+	 * journal is not open if reopening it after a compaction failed.
+	 */
+	private DataOutputStream getJournal() throws IOException
+	{
+		if (journal == null) {
+			journal = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		}
+
+		return journal;
+	}
+
+	private static void writeEntry(DataOutputStream out, CacheEntry entry)
+			throws IOException
+	{
+		out.writeByte(entry.getStatus().ordinal());
+		out.writeInt(entry.getRemaining());
+		out.writeInt(entry.getCompleted());
+		out.writeInt(entry.getFailed());
+		out.writeInt(entry.getWarning());
+		out.writeUTF(StringUtils.left(StringUtils.defaultString(entry.getError()),
+									  MAX_ERROR_LENGTH));
+	}
+
+	/**
+	 * Rewrite the journal if it has accumulated enough superseded records
+	 *
+	 * @throws IOException if the journal could not be rewritten
+	 */
+	synchronized void compactIfNeeded() throws IOException
+	{
+		if (records > Math.max(MIN_COMPACT_RECORDS, liveRecords * 2)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrite the journal so that it only contains the live entries. The
+	 * live entries are written to a temporary file that replaces the journal.
+	 * If that fails, the current journal stays open. If the journal cannot be
+	 * reopened, the next write tries again.
+	 *
+	 * @throws IOException if the journal could not be rewritten
+	 */
+	synchronized void compact() throws IOException
+	{
+		int count = 0;
+		File tmpFile = new File(journalFile.getParentFile(), JOURNAL_NAME + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			for (Map.Entry<String, Map<String, CacheEntry>> study : studies.entrySet()) {
+				for (Map.Entry<String, CacheEntry> e : study.getValue().entrySet()) {
+					CacheEntry entry = e.getValue();
+					if (entry.getStatus() == IN_PROGRESS) {
+						continue;
+					}
+
+					out.writeByte(PUT);
+					out.writeUTF(study.getKey());
+					out.writeUTF(e.getKey());
+					writeEntry(out, entry);
+
+					count++;
+				}
+			}
+		}
+		catch (IOException ex) {
+			FileUtils.deleteQuietly(tmpFile);
+
+			throw ex;
+		}
+
+		close();
+		try {
+			Files.move(tmpFile.toPath(),
+					   journalFile.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE,
+					   StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException ex) {
+			FileUtils.deleteQuietly(tmpFile);
+
+			// Keep appending to the old journal
+			try {
+				getJournal();
+			}
+			catch (IOException reopen) {
+				ex.addSuppressed(reopen);
+			}
+
+			throw ex;
+		}
+
+		records = count;
+		liveRecords = count;
+
+		logger.debug("Compacted {} to {} record(s)", journalFile, count);
+
+		getJournal();
+	}
+
+	/**
+	 * Close the journal
+	 */
+	synchronized void close()
+	{
+		if (journal != null) {
+			try {
+				journal.close();
+			}
+			catch (IOException ex) {
+				logger.warn("Unable to close journal: " + journalFile, ex);
+			}
+
+			journal = null;
+		}
+	}
+
+}
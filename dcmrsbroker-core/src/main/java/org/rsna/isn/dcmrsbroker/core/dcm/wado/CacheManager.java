@@ -16,15 +16,21 @@
 package org.rsna.isn.dcmrsbroker.core.dcm.wado;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.logging.Level;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -32,9 +38,11 @@ import org.dcm4che3.data.UID;
 import org.dcm4che3.io.DicomOutputStream;
 import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
 import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.SCP_CACHE_DIR_PATH;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.SCP_CACHE_WARM_START;
 import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
 
 /**
@@ -50,9 +58,19 @@ class CacheManager
 	private static final Logger logger
 			= LoggerFactory.getLogger(CacheManager.class);
 
+	private static final long COMPACT_INTERVAL_IN_MIN = 5;
+
 	private static final File cacheDir;
 
+	private static final CacheIndex index;
+
+	private static final ReadWriteLock locks[] = new ReadWriteLock[64];
+
 	static {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+
 		String path = Environment.getProperty(SCP_CACHE_DIR_PATH);
 		cacheDir = new File(path);
 
@@ -62,14 +80,38 @@ class CacheManager
 			throw new ExceptionInInitializerError(cacheDir + " is not a directory.");
 		}
 		
+		boolean warmStart = Environment.getPropertyAsBoolean(SCP_CACHE_WARM_START);
+		if (!warmStart) {
+			try {
+				FileUtils.cleanDirectory(cacheDir);
+			}
+			catch (IOException ex) {
+				logger.warn("Unable to purge cache directory: " + cacheDir, ex);
+
+				throw new ExceptionInInitializerError(ex);
+			}
+		}
+
+		index = new CacheIndex(cacheDir);
 		try {
-			FileUtils.cleanDirectory(cacheDir);
+			index.open();
 		}
 		catch (IOException ex) {
-			logger.warn("Unable to purge cache directory: " + cacheDir, ex);
-			
+			logger.warn("Unable to open cache index in: " + cacheDir, ex);
+
 			throw new ExceptionInInitializerError(ex);
 		}
+
+		if (warmStart) {
+			CacheScanner scanner = new CacheScanner(cacheDir, index);
+			scanner.start();
+		}
+
+		ExecutorServiceFactory.getScheduledService()
+				.scheduleWithFixedDelay(CacheManager::compactIndex,
+										COMPACT_INTERVAL_IN_MIN,
+										COMPACT_INTERVAL_IN_MIN,
+										TimeUnit.MINUTES);
 		
 		CacheReaper reaper = new CacheReaper();
 		reaper.start();
@@ -79,63 +121,76 @@ class CacheManager
 	{
 	}
 
+	/**
+	 * Initialize the cache. Loads the cache index and, if enabled, starts
+	 * rebuilding the cache state from disk in the background.
+	 */
+	static void init()
+	{
+		// Work is done in the static initializer
+	}
+
+	/**
+	 * Get the lock that guards the files and entries of a study. Retrieves
+	 * and writes hold the read lock, so they run concurrently. Removing the
+	 * study requires the write lock.
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @return the lock
+	 */
+	static ReadWriteLock getStudyLock(String studyUid)
+	{
+		return locks[Math.floorMod(studyUid.hashCode(), locks.length)];
+	}
+
+	private static void compactIndex()
+	{
+		try {
+			index.compactIfNeeded();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to compact cache index", ex);
+		}
+	}
+
 	private static CacheEntry getEntry(String studyUid,
 									   String seriesUid,
 									   String instanceUid)
-			throws Exception
 	{
-		File studyDir = new File(cacheDir, studyUid);
-
-
-		File infoFile;
-		if (StringUtils.isNotBlank(seriesUid)) {
-			File seriesDir = new File(studyDir, seriesUid);
+		CacheEntry entry = index.get(studyUid, seriesUid, instanceUid);
+		if (entry != null) {
+			return entry;
+		}
 
-			if (StringUtils.isNotBlank(instanceUid)) {
-				infoFile = new File(seriesDir, instanceUid + ".info");
-				if (!infoFile.isFile()) {
-					// Try looking for the info file at a higher level
-					CacheEntry entry = getEntry(studyUid, seriesUid, null);
-					if (entry != null && COMPLETED.equals(entry.getStatus())) {
-						File dcmFile = buildFile(studyUid,
-												 seriesUid,
-												 instanceUid,
-												 "dcm");
-
-						return new CacheEntry(dcmFile,
-											  entry.getCompleted(),
-											  entry.getWarning());
-					}
-					else {
-						return entry;
-					}
-				}
+		if (StringUtils.isNotBlank(instanceUid)) {
+			// Try looking for the entry at a higher level
+			entry = getEntry(studyUid, seriesUid, null);
+			if (entry != null && COMPLETED.equals(entry.getStatus())) {
+				File dcmFile = buildFile(studyUid,
+										 seriesUid,
+										 instanceUid,
+										 "dcm");
+
+				return new CacheEntry(studyUid,
+									  dcmFile,
+									  entry.getCompleted(),
+									  entry.getWarning());
 			}
 			else {
-				infoFile = new File(seriesDir, "series.info");
-				if (!infoFile.isFile()) {
-					// Try looking for the info file at a higher level
-					CacheEntry entry = getEntry(studyUid, null, null);
-					if (entry != null && COMPLETED.equals(entry.getStatus())) {
-						return new CacheEntry(seriesDir,
-											  entry.getCompleted(),
-											  entry.getWarning());
-					}
-					else {
-						return entry;
-					}
-				}
+				return entry;
 			}
 		}
-		else {
-			infoFile = new File(studyDir, "study.info");
-		}
-
-		if (infoFile.isFile()) {
-			try (FileInputStream fin = new FileInputStream(infoFile)) {
-				ObjectInputStream oin = new ObjectInputStream(fin);
-
-				return (CacheEntry) oin.readObject();
+		else if (StringUtils.isNotBlank(seriesUid)) {
+			// Try looking for the entry at a higher level
+			entry = getEntry(studyUid, null, null);
+			if (entry != null && COMPLETED.equals(entry.getStatus())) {
+				return new CacheEntry(studyUid,
+									  buildFile(studyUid, seriesUid, null, "dcm"),
+									  entry.getCompleted(),
+									  entry.getWarning());
+			}
+			else {
+				return entry;
 			}
 		}
 		else {
@@ -151,10 +206,10 @@ class CacheManager
 						 suffix);
 	}
 
-	private static File buildFile(String studyUid,
-								  String seriesUid,
-								  String instanceUid,
-								  String suffix)
+	static File buildFile(String studyUid,
+						  String seriesUid,
+						  String instanceUid,
+						  String suffix)
 	{
 		File studyDir = new File(cacheDir, studyUid);
 		if (StringUtils.isNotBlank(seriesUid)) {
@@ -176,54 +231,68 @@ class CacheManager
 									RetrieveParameters params)
 			throws IOException
 	{
-		String studyUid = params.getStudyUid();
-		String seriesUid = params.getSeriesUid();
-		String instanceUid = params.getInstanceUid();
-
-		File studyDir = new File(cacheDir, studyUid);
-
-		File infoFile;
-		if (StringUtils.isNotBlank(seriesUid)) {
-			File seriesDir = new File(studyDir, seriesUid);
-			if (StringUtils.isNotBlank(instanceUid)) {
-				infoFile = new File(seriesDir, instanceUid + ".info");
-			}
-			else {
-				infoFile = new File(seriesDir, "series.info");
-			}
-		}
-		else {
-			infoFile = new File(studyDir, "study.info");
-		}
-
-		FileUtils.touch(infoFile); // Create parent dirs if necessary
-		try (FileOutputStream fos = new FileOutputStream(infoFile)) {
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-
-			oos.writeObject(entry);
-		}
+		index.put(params.getStudyUid(),
+				  params.getSeriesUid(),
+				  params.getInstanceUid(),
+				  entry);
 	}
 
-	static CacheEntry getEntry(RetrieveParameters params)
-			throws Exception
+	/**
+	 * Get the entry for a request. This is not counted as an access of the
+	 * study; accesses are recorded when the files of a completed entry are
+	 * sent to a client (see {@link CacheEntry#touch()}).
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @return the entry or null if there is none
+	 */
+	static CacheEntry peekEntry(RetrieveParameters params)
 	{
 		return getEntry(params.getStudyUid(),
 						params.getSeriesUid(),
 						params.getInstanceUid());
 	}
 
+	/**
+	 * Remove the entry of a request that was abandoned before it was
+	 * retrieved
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @throws IOException if the cache index could not be updated
+	 */
+	static void clearEntry(RetrieveParameters params) throws IOException
+	{
+		index.remove(params.getStudyUid(),
+					 params.getSeriesUid(),
+					 params.getInstanceUid());
+	}
+
+	/**
+	 * Determine if there is a retrieve in progress for any part of a study
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @return true if a retrieve is in progress
+	 */
+	static boolean isInProgress(String studyUid)
+	{
+		return index.contains(studyUid, IN_PROGRESS);
+	}
+
 	static CacheEntry setInProgress(RetrieveParameters params,
-									int remaining,
-									int completed,
-									int failed,
-									int warning) throws IOException
+									RetrieveJob job) throws IOException
 	{
-		CacheEntry entry = new CacheEntry(remaining,
-										  completed,
-										  failed,
-										  warning);
+		CacheEntry entry = new CacheEntry(job);
 
-		updateEntry(entry, params);
+		Lock lock = getStudyLock(params.getStudyUid()).readLock();
+		lock.lock();
+		try {
+			updateEntry(entry, params);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		// A retrieve that fails before any object arrives must still expire
+		CacheReaper.recordUpdate(params.getStudyUid());
 
 		return entry;
 	}
@@ -241,6 +310,9 @@ class CacheManager
 
 		updateEntry(entry, params);
 
+		// Failed entries are purged after the max age so the request is retried
+		CacheReaper.recordUpdate(params.getStudyUid());
+
 		return entry;
 	}
 
@@ -248,7 +320,8 @@ class CacheManager
 								   int completed,
 								   int warning) throws IOException
 	{
-		CacheEntry entry = new CacheEntry(buildFile(params, "dcm"),
+		CacheEntry entry = new CacheEntry(params.getStudyUid(),
+										  buildFile(params, "dcm"),
 										  completed,
 										  warning);
 
@@ -257,16 +330,50 @@ class CacheManager
 		return entry;
 	}
 
-	static long getFileCount(RetrieveParameters params) throws IOException
+	/**
+	 * Remove a study from the cache. The caller must hold the write lock of
+	 * the study.
+	 *
+	 * @param studyDir the study directory (cannot be null)
+	 * @throws IOException if there was an error removing the study
+	 */
+	static void purgeStudy(File studyDir) throws IOException
+	{
+		index.removeStudy(studyDir.getName());
+		MetadataIndex.remove(studyDir.getName());
+
+		FileUtils.deleteDirectory(studyDir);
+	}
+
+	/**
+	 * Determine if the given file is part of the cache index
+	 *
+	 * @param file the file to check (cannot be null)
+	 * @return true if the file belongs to the index
+	 */
+	static boolean isIndexFile(File file)
+	{
+		return file.getName().startsWith(CacheIndex.JOURNAL_NAME);
+	}
+
+	/**
+	 * Get the files of the objects in the cache for a request
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @return the files (never null)
+	 * @throws IOException if there was an error listing the objects
+	 */
+	static List<Path> getInstanceFiles(RetrieveParameters params) throws IOException
 	{
 		File root = buildFile(params, "dcm");
 		if (!root.exists()) {
-			return 0;
+			return Collections.emptyList();
 		}
 
-		return Files.walk(root.toPath())
-				.filter(new FileFilter("dcm"))
-				.count();
+		try (Stream<Path> files = Files.walk(root.toPath())) {
+			return files.filter(new FileFilter("dcm"))
+					.collect(Collectors.toList());
+		}
 	}
 
 	static void writeObject(Attributes obj, String txUid, String classUid)
@@ -279,6 +386,9 @@ class CacheManager
 		File dcmFile = buildFile(studyUid, seriesUid, instanceUid, "dcm");
 		File tmpFile = buildFile(studyUid, seriesUid, instanceUid, "tmp");
 		File errFile = buildFile(studyUid, seriesUid, instanceUid, "err");
+
+		Lock lock = getStudyLock(studyUid).readLock();
+		lock.lock();
 		try {
 			if (errFile.isFile()) {
 				logger.info("Overwriting error file: {}", errFile);
@@ -288,7 +398,9 @@ class CacheManager
 
 			FileUtils.touch(tmpFile); // Create parent directories if needed
 
-			try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+			long size;
+			try (CountingOutputStream fos
+					= new CountingOutputStream(new FileOutputStream(tmpFile))) {
 				if (UID.ImplicitVRLittleEndian.equals(txUid)) {
 					// DicomOutputStream throws exception when writing dataset with LEI
 					txUid = UID.ExplicitVRLittleEndian;
@@ -309,19 +421,29 @@ class CacheManager
 				DicomOutputStream dos = new DicomOutputStream(fos, txUid);
 				dos.writeDataset(fmi, obj);
 				dos.close();
+
+				size = fos.getByteCount();
 			}
 
+			long replaced = dcmFile.length();
+
 			Files.move(tmpFile.toPath(),
 					   dcmFile.toPath(),
 					   StandardCopyOption.ATOMIC_MOVE,
 					   StandardCopyOption.REPLACE_EXISTING);
+
+			CacheReaper.recordWrite(studyUid, size - replaced);
 		}
 		catch (Exception ex) {
 			logger.warn("Unable save DICOM object to: " + dcmFile, ex);
 
 			FileUtils.touch(errFile);
 			FileUtils.deleteQuietly(tmpFile);
-			FileUtils.deleteQuietly(dcmFile);
+
+			long removed = dcmFile.length();
+			if (FileUtils.deleteQuietly(dcmFile)) {
+				CacheReaper.recordWrite(studyUid, -removed);
+			}
 
 			if (ex instanceof IOException) {
 				throw (IOException) ex;
@@ -330,6 +452,9 @@ class CacheManager
 				throw new IOException(ex);
 			}
 		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 }
@@ -12,23 +12,42 @@
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
- * 
+ *
  * Created Oct 18, 2017
  */
 package org.rsna.isn.dcmrsbroker.core.dcm.wado;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.rsna.isn.dcmrsbroker.core.util.Environment;
 import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Thread for cleaning up old files in cache
+ * Thread for cleaning up old files in cache.
+ * <p>
+ * The size and the last write and access times of each study are tracked in
+ * memory. Each study has an expiry in a time ordered queue, so the reaper only
+ * looks at studies that are due. An expiry that was pushed back by a later
+ * write or access is simply re-queued when it comes up.
+ * <p>
+ * If a maximum cache size is configured, studies are also evicted in the
+ * background (least recently or least frequently used first) once the cache
+ * grows past the high watermark, until it drops below the low watermark.
  *
  * @author Wyatt Tellis
  * @since 1.0.0
@@ -40,9 +59,31 @@ class CacheReaper extends Thread
 			= LoggerFactory.getLogger(CacheReaper.class);
 
 	private static final File cacheDir;
-	
+
 	private static final long maxAge;
 
+	/**
+	 * How long to wait before checking a study that is being retrieved again
+	 */
+	private static final long IN_PROGRESS_DELAY = DateUtils.MILLIS_PER_MINUTE;
+
+	private static final ConcurrentHashMap<String, StudyActivity> studies
+			= new ConcurrentHashMap();
+
+	private static final DelayQueue<Expiry> expiries = new DelayQueue();
+
+	private static final AtomicLong cacheSize = new AtomicLong();
+
+	private static final AtomicBoolean evicting = new AtomicBoolean();
+
+	private static final long maxSize;
+
+	private static final long highWatermark;
+
+	private static final long lowWatermark;
+
+	private static final Comparator<StudyActivity> evictionOrder;
+
 	static {
 		String path = Environment.getProperty(SCP_CACHE_DIR_PATH);
 		cacheDir = new File(path);
@@ -50,15 +91,40 @@ class CacheReaper extends Thread
 		if (!cacheDir.isDirectory()) {
 			throw new ExceptionInInitializerError(cacheDir + " is not a directory.");
 		}
-		
+
 		logger.info("Cache directory set to: {}", cacheDir);
 
-		maxAge = Environment.getPropertyAsInt(SCP_CACHE_MAX_AGE) * 
+		maxAge = Environment.getPropertyAsInt(SCP_CACHE_MAX_AGE) *
 				 DateUtils.MILLIS_PER_MINUTE;
-		
-		logger.info("Max age set to: {}", 
+
+		logger.info("Max age set to: {}",
 					DurationFormatUtils.formatDurationWords(maxAge, true, true));
-		
+
+		maxSize = Environment.getPropertyAsLong(SCP_CACHE_MAX_SIZE);
+		highWatermark = maxSize / 100 * Environment.getPropertyAsInt(SCP_CACHE_HIGH_WATERMARK);
+		lowWatermark = maxSize / 100 * Environment.getPropertyAsInt(SCP_CACHE_LOW_WATERMARK);
+
+		String policy = Environment.getProperty(SCP_CACHE_EVICTION_POLICY);
+		if ("LFU".equalsIgnoreCase(policy)) {
+			evictionOrder = Comparator.comparingLong(StudyActivity::getAccessCount)
+					.thenComparingLong(StudyActivity::getLastUsed);
+		}
+		else if ("LRU".equalsIgnoreCase(policy)) {
+			evictionOrder = Comparator.comparingLong(StudyActivity::getLastUsed);
+		}
+		else {
+			throw new ExceptionInInitializerError("Unsupported cache eviction policy: "
+												  + policy);
+		}
+
+		if (maxSize > 0) {
+			logger.info("Max size set to: {}. Evicting {} studies above {} down to {}.",
+						FileUtils.byteCountToDisplaySize(maxSize),
+						policy.toUpperCase(),
+						FileUtils.byteCountToDisplaySize(highWatermark),
+						FileUtils.byteCountToDisplaySize(lowWatermark));
+		}
+
 		Runtime.getRuntime().addShutdownHook(new Thread()
 		{
 			@Override
@@ -77,63 +143,274 @@ class CacheReaper extends Thread
 		setDaemon(true);
 	}
 
-	private static boolean keepRunning = false;
+	private static volatile boolean keepRunning = false;
 
-	@Override
-	public void run()
+	private static StudyActivity getActivity(String studyUid, long now)
 	{
-		logger.info("Started reaper thread");
+		StudyActivity activity = studies.get(studyUid);
+		if (activity == null) {
+			StudyActivity created = new StudyActivity(studyUid, now);
 
-		keepRunning = true;
-		while (keepRunning) {
-			for (File studyDir : cacheDir.listFiles()) {
-				if (studyDir.isDirectory()) {
-					try {
-						long modified = getLastModified(studyDir);
-						long age = System.currentTimeMillis() - modified;
-						
-						if(age >= maxAge) {
-							FileUtils.deleteDirectory(studyDir);
-							
-							logger.warn("Purged directory: {}", studyDir);
-						}						
-					}
-					catch (Exception ex) {
-						logger.warn("Error processing directory: "
-									+ studyDir, ex);
-					}
+			activity = studies.putIfAbsent(studyUid, created);
+			if (activity == null) {
+				activity = created;
+
+				expiries.offer(new Expiry(studyUid, now + maxAge));
+			}
+		}
+
+		return activity;
+	}
+
+	/**
+	 * Record that an object was written to a study
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param delta the change in the size of the study in bytes
+	 */
+	static void recordWrite(String studyUid, long delta)
+	{
+		long now = System.currentTimeMillis();
+
+		StudyActivity activity = getActivity(studyUid, now);
+		activity.setLastWrite(now);
+		activity.addSize(delta);
+
+		long size = cacheSize.addAndGet(delta);
+		if (maxSize > 0 && size > highWatermark) {
+			if (evicting.compareAndSet(false, true)) {
+				ExecutorServiceFactory.getService().execute(CacheReaper::evict);
+			}
+		}
+	}
+
+	/**
+	 * Record that the cache entry of a study was updated without writing an
+	 * object. Ensures the study expires even if no object is ever written.
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 */
+	static void recordUpdate(String studyUid)
+	{
+		long now = System.currentTimeMillis();
+
+		getActivity(studyUid, now).setLastWrite(now);
+	}
+
+	/**
+	 * Record that a study was accessed by a client
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 */
+	static void recordAccess(String studyUid)
+	{
+		long now = System.currentTimeMillis();
+
+		StudyActivity activity = getActivity(studyUid, now);
+		activity.setLastAccess(now);
+		activity.incrementAccessCount();
+	}
+
+	/**
+	 * Register a study that was already in the cache (e.g. after a restart)
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param lastWrite the time the study was last written
+	 * @param size the size of the study in bytes
+	 */
+	static void register(String studyUid, long lastWrite, long size)
+	{
+		StudyActivity activity = getActivity(studyUid, lastWrite);
+
+		if (lastWrite > activity.getLastWrite()) {
+			activity.setLastWrite(lastWrite);
+		}
+
+		activity.addSize(size);
+		cacheSize.addAndGet(size);
+	}
+
+	/**
+	 * Get the total size of the cache
+	 *
+	 * @return the size in bytes
+	 */
+	static long getCacheSize()
+	{
+		return cacheSize.get();
+	}
+
+	/**
+	 * Determine if there is room in the cache for objects that have not been
+	 * asked for. Speculative retrieves should not push the cache into
+	 * eviction.
+	 *
+	 * @return true if the cache size is not limited or is below the low
+	 * watermark
+	 */
+	static boolean isBelowLowWatermark()
+	{
+		return maxSize <= 0 || cacheSize.get() < lowWatermark;
+	}
+
+	/**
+	 * Evict studies until the cache is below the low watermark
+	 */
+	private static void evict()
+	{
+		try {
+			List<StudyActivity> candidates = new ArrayList(studies.values());
+			candidates.sort(evictionOrder);
+
+			logger.info("Cache size of {} exceeds {}. Evicting studies.",
+						FileUtils.byteCountToDisplaySize(cacheSize.get()),
+						FileUtils.byteCountToDisplaySize(highWatermark));
+
+			int count = 0;
+			for (StudyActivity activity : candidates) {
+				if (cacheSize.get() <= lowWatermark) {
+					break;
 				}
-				else if (studyDir.isFile()) {
-					logger.warn("Deleting extraneous file: {}", studyDir);
 
-					studyDir.delete();
+				if (purge(activity)) {
+					count++;
 				}
 			}
 
+			logger.info("Evicted {} studies. Cache size is now {}.",
+						count,
+						FileUtils.byteCountToDisplaySize(cacheSize.get()));
+		}
+		catch (Exception ex) {
+			logger.warn("Uncaught exception while evicting studies", ex);
+		}
+		finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Remove a study from the cache unless it is being retrieved. The check
+	 * and the removal are done under the write lock of the study, so no
+	 * retrieve can start and no object can be written in between.
+	 *
+	 * @param activity the activity of the study to remove
+	 * @return true if the study was removed, false if it is being retrieved,
+	 * was already removed or could not be removed
+	 */
+	private static boolean purge(StudyActivity activity)
+	{
+		String studyUid = activity.getStudyUid();
+
+		Lock lock = CacheManager.getStudyLock(studyUid).writeLock();
+		lock.lock();
+		try {
+			if (CacheManager.isInProgress(studyUid)) {
+				return false;
+			}
+
+			if (!studies.remove(studyUid, activity)) {
+				return false;
+			}
+
+			cacheSize.addAndGet(-activity.getSize());
+
+			File studyDir = new File(cacheDir, studyUid);
+			try {
+				CacheManager.purgeStudy(studyDir);
+
+				logger.warn("Purged directory: {}", studyDir);
+
+				return true;
+			}
+			catch (Exception ex) {
+				logger.warn("Error processing directory: "
+							+ studyDir, ex);
+
+				return false;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		logger.info("Started reaper thread");
+
+		keepRunning = true;
+		while (keepRunning) {
+			Expiry expiry;
 			try {
-				Thread.sleep(1000);
+				expiry = expiries.poll(1, TimeUnit.SECONDS);
 			}
 			catch (InterruptedException ex) {
 				logger.warn("Reaper thread terminated", ex);
 
 				return;
 			}
+
+			if (expiry != null) {
+				process(expiry);
+			}
 		}
 
 		logger.info("Stopped reaper thread");
 	}
 
-	private static long getLastModified(File studyDir)
+	private void process(Expiry expiry)
+	{
+		String studyUid = expiry.studyUid;
+
+		StudyActivity activity = studies.get(studyUid);
+		if (activity == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long due = activity.getLastUsed() + maxAge;
+		if (due > now) {
+			// Written or accessed since the expiry was queued
+			expiries.offer(new Expiry(studyUid, due));
+
+			return;
+		}
+
+		if (!purge(activity) && CacheManager.isInProgress(studyUid)) {
+			expiries.offer(new Expiry(studyUid, now + IN_PROGRESS_DELAY));
+		}
+	}
+
+	/**
+	 * Scheduled expiry of a study
+	 */
+	private static class Expiry implements Delayed
 	{
-		long newest = Long.MIN_VALUE;
+		private final String studyUid;
+
+		private final long due;
+
+		private Expiry(String studyUid, long due)
+		{
+			this.studyUid = studyUid;
+			this.due = due;
+		}
 
-		for (File file : (Iterable<File>)()-> FileUtils.iterateFiles(studyDir,
-																 TrueFileFilter.INSTANCE,
-																 TrueFileFilter.INSTANCE)) {
-			newest = Math.max(newest, file.lastModified());
+		@Override
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(due - System.currentTimeMillis(),
+								TimeUnit.MILLISECONDS);
 		}
-		
-		return newest;
+
+		@Override
+		public int compareTo(Delayed o)
+		{
+			return Long.compare(due, ((Expiry) o).due);
+		}
+
 	}
 
 }
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
+import org.rsna.isn.dcmrsbroker.core.util.DicomUtil;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds the cache state from the contents of the cache directory after a
+ * restart.
+ * <p>
+ * Studies are scanned in parallel. Leftover temporary and error files are
+ * deleted, completed DICOM files are validated and any index entry that is no
+ * longer backed by the files on disk is dropped. Studies on disk without any
+ * index entry (e.g. because the journal was lost) get an instance level entry
+ * for each valid object, so those objects are served again. Their series and
+ * study level requests are retrieved again.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class CacheScanner extends RecursiveAction
+{
+	private static final Logger logger = LoggerFactory.getLogger(CacheScanner.class);
+
+	private static final boolean ignoreMissing = Environment.getPropertyAsBoolean(WADO_IGNORE_MISSING_OBJECTS);
+
+	private final File cacheDir;
+
+	private final CacheIndex index;
+
+	private final long started = System.currentTimeMillis();
+
+	private final AtomicInteger deleted = new AtomicInteger();
+
+	private final AtomicInteger valid = new AtomicInteger();
+
+	CacheScanner(File cacheDir, CacheIndex index)
+	{
+		this.cacheDir = cacheDir;
+		this.index = index;
+	}
+
+	/**
+	 * Start scanning the cache directory in the background
+	 */
+	void start()
+	{
+		int parallelism = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		pool.execute(this);
+		pool.shutdown();
+	}
+
+	@Override
+	protected void compute()
+	{
+		try {
+			scan();
+		}
+		catch (Exception ex) {
+			logger.warn("Uncaught exception while scanning cache directory: "
+						+ cacheDir + ". The cache index may be incomplete.", ex);
+		}
+	}
+
+	private void scan()
+	{
+		logger.info("Started scanning cache directory: {}", cacheDir);
+
+		StopWatch timer = new StopWatch();
+		timer.start();
+
+		// Studies added to the index later belong to retrieves started during the scan
+		Set<String> indexed = new HashSet(index.getStudyUids());
+
+		Set<String> found = new HashSet();
+		List<StudyTask> tasks = new ArrayList();
+		for (File file : listFiles(cacheDir)) {
+			if (file.isDirectory()) {
+				found.add(file.getName());
+
+				tasks.add(new StudyTask(file));
+			}
+			else if (!CacheManager.isIndexFile(file)) {
+				delete(file);
+			}
+		}
+
+		invokeAll(tasks);
+
+		for (String studyUid : indexed) {
+			if (!found.contains(studyUid) && !index.contains(studyUid, IN_PROGRESS)) {
+				try {
+					index.removeStudy(studyUid);
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to remove study " + studyUid
+								+ " from the cache index", ex);
+				}
+			}
+		}
+
+		logger.info("Finished scanning cache directory: {} in {} ms. "
+					+ "Found {} studies and {} valid objects. Deleted {} file(s).",
+					cacheDir,
+					timer.getTime(),
+					tasks.size(),
+					valid.get(),
+					deleted.get());
+	}
+
+	private static File[] listFiles(File dir)
+	{
+		File files[] = dir.listFiles();
+
+		return files != null ? files : new File[0];
+	}
+
+	private void delete(File file)
+	{
+		if (file.lastModified() >= started) {
+			// Written after the scan started, so it belongs to an active retrieve
+			return;
+		}
+
+		if (FileUtils.deleteQuietly(file)) {
+			deleted.incrementAndGet();
+
+			logger.debug("Deleted leftover file: {}", file);
+		}
+	}
+
+	/**
+	 * Scans a single study directory and reconciles the index entries
+	 */
+	private class StudyTask extends RecursiveAction
+	{
+		private final File studyDir;
+
+		private StudyTask(File studyDir)
+		{
+			this.studyDir = studyDir;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<SeriesTask> tasks = new ArrayList();
+			long indexSize = 0;
+			for (File file : listFiles(studyDir)) {
+				if (file.isDirectory()) {
+					tasks.add(new SeriesTask(file));
+				}
+				else if (MetadataIndex.isIndexFile(file)) {
+					if (file.lastModified() < started) {
+						indexSize = file.length();
+					}
+				}
+				else {
+					delete(file);
+				}
+			}
+
+			invokeAll(tasks);
+
+			Map<String, Set<String>> instances = new HashMap();
+			long lastModified = studyDir.lastModified();
+			long size = indexSize;
+			for (SeriesTask task : tasks) {
+				instances.put(task.seriesDir.getName(), task.instances);
+
+				lastModified = Math.max(lastModified, task.lastModified);
+				size += task.size;
+			}
+
+			String studyUid = studyDir.getName();
+			CacheReaper.register(studyUid, lastModified, size);
+
+			if (index.getEntries(studyUid).isEmpty()) {
+				recover(studyUid, instances);
+
+				return;
+			}
+
+			for (Map.Entry<String, CacheEntry> e : index.getEntries(studyUid).entrySet()) {
+				CacheEntry entry = e.getValue();
+				if (entry.getStatus() != COMPLETED) {
+					continue;
+				}
+
+				String seriesUid = StringUtils.substringBefore(e.getKey(), "/");
+				String instanceUid = StringUtils.substringAfter(e.getKey(), "/");
+
+				int count;
+				if (StringUtils.isNotBlank(instanceUid)) {
+					Set<String> series = instances.get(seriesUid);
+					count = series != null && series.contains(instanceUid) ? 1 : 0;
+				}
+				else if (StringUtils.isNotBlank(seriesUid)) {
+					Set<String> series = instances.get(seriesUid);
+					count = series != null ? series.size() : 0;
+				}
+				else {
+					count = instances.values().stream().mapToInt(Set::size).sum();
+				}
+
+				if (!isComplete(entry, count, StringUtils.isNotBlank(instanceUid))) {
+					logger.info("Dropping cache entry for {}/{}. Only {} object(s) found.",
+								studyUid, e.getKey(), count);
+
+					try {
+						index.remove(studyUid, seriesUid, instanceUid);
+					}
+					catch (Exception ex) {
+						logger.warn("Unable to remove " + studyUid + "/" + e.getKey()
+									+ " from the cache index", ex);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Create instance level entries for the objects of a study that has
+		 * no entries in the index
+		 */
+		private void recover(String studyUid, Map<String, Set<String>> instances)
+		{
+			int count = 0;
+			try {
+				for (Map.Entry<String, Set<String>> series : instances.entrySet()) {
+					String seriesUid = series.getKey();
+					for (String instanceUid : series.getValue()) {
+						File dcmFile = CacheManager.buildFile(studyUid,
+															  seriesUid,
+															  instanceUid,
+															  "dcm");
+
+						index.put(studyUid,
+								  seriesUid,
+								  instanceUid,
+								  new CacheEntry(studyUid, dcmFile, 1, 0));
+
+						count++;
+					}
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to recover cache entries of study " + studyUid, ex);
+			}
+
+			if (count > 0) {
+				logger.info("Recovered {} cache entries for study {}", count, studyUid);
+			}
+		}
+
+		private boolean isComplete(CacheEntry entry, int count, boolean instanceLevel)
+		{
+			if (count < 1) {
+				return false;
+			}
+			else if (instanceLevel) {
+				return true;
+			}
+
+			int expected = entry.getCompleted() + entry.getWarning();
+			if (expected < 1 || ignoreMissing) {
+				return true;
+			}
+			else {
+				return count >= expected;
+			}
+		}
+
+	}
+
+	/**
+	 * Scans a single series directory. Collects the SOP instance UIDs with a
+	 * valid DICOM file, their total size and the time the series was last
+	 * modified.
+	 */
+	private class SeriesTask extends RecursiveAction
+	{
+		private final File seriesDir;
+
+		private final Set<String> instances = new HashSet();
+
+		private long lastModified;
+
+		private long size;
+
+		private SeriesTask(File seriesDir)
+		{
+			this.seriesDir = seriesDir;
+		}
+
+		@Override
+		protected void compute()
+		{
+			for (File file : listFiles(seriesDir)) {
+				String name = file.getName();
+
+				lastModified = Math.max(lastModified, file.lastModified());
+
+				if (file.isDirectory()) {
+					logger.warn("Ignoring unexpected directory: {}", file);
+				}
+				else if (name.endsWith(".dcm")) {
+					String instanceUid = StringUtils.removeEnd(name, ".dcm");
+					if (isValid(file, instanceUid)) {
+						instances.add(instanceUid);
+
+						if (file.lastModified() < started) {
+							// Newer files were already counted when written
+							size += file.length();
+						}
+
+						valid.incrementAndGet();
+					}
+					else {
+						delete(file);
+					}
+				}
+				else {
+					delete(file);
+				}
+			}
+		}
+
+		private boolean isValid(File file, String instanceUid)
+		{
+			if (file.lastModified() >= started) {
+				// Written by an active retrieve
+				return true;
+			}
+
+			try {
+				Attributes fmi = DicomUtil.getFileMetaInformation(file.toPath());
+				if (fmi == null) {
+					logger.warn("Missing file meta-information in: {}", file);
+
+					return false;
+				}
+				else if (!instanceUid.equals(fmi.getString(Tag.MediaStorageSOPInstanceUID))) {
+					logger.warn("SOP instance UID does not match file name: {}", file);
+
+					return false;
+				}
+				else {
+					return StringUtils.isNotBlank(fmi.getString(Tag.TransferSyntaxUID));
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to read DICOM file: " + file, ex);
+
+				return false;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.function.Supplier;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.rsna.isn.dcmrsbroker.core.dcm.AssociationPool;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+
+/**
+ * C-GET SCU. The objects are received on the same association as the C-GET
+ * request, so the retrieve is complete once the final response arrives.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class GetScu extends RetrieveScu
+{
+	private static final String transferSyntaxes[] = {
+		UID.ExplicitVRLittleEndian,
+		UID.ImplicitVRLittleEndian
+	};
+
+	/**
+	 * Compressed transfer syntaxes accepted for image classes. Each one gets
+	 * its own presentation context, so the remote AE can send an object in
+	 * the transfer syntax it is stored in instead of decompressing it.
+	 * Objects in other transfer syntaxes are decompressed by the remote AE.
+	 */
+	private static final String compressedTransferSyntaxes[] = {
+		UID.JPEGLossless,
+		UID.JPEGBaseline1,
+		UID.JPEG2000LosslessOnly,
+		UID.JPEG2000
+	};
+
+	/**
+	 * Image storage SOP classes the broker accepts on a C-GET association.
+	 * An association can have at most 128 presentation contexts, so only the
+	 * commonly used classes are included. Objects of other classes cannot be
+	 * retrieved with C-GET.
+	 */
+	private static final String imageClasses[] = {
+		UID.ComputedRadiographyImageStorage,
+		UID.DigitalXRayImageStorageForPresentation,
+		UID.DigitalXRayImageStorageForProcessing,
+		UID.DigitalMammographyXRayImageStorageForPresentation,
+		UID.DigitalMammographyXRayImageStorageForProcessing,
+		UID.BreastTomosynthesisImageStorage,
+		UID.CTImageStorage,
+		UID.EnhancedCTImageStorage,
+		UID.MRImageStorage,
+		UID.EnhancedMRImageStorage,
+		UID.UltrasoundImageStorage,
+		UID.UltrasoundMultiFrameImageStorage,
+		UID.SecondaryCaptureImageStorage,
+		UID.XRayAngiographicImageStorage,
+		UID.XRayRadiofluoroscopicImageStorage,
+		UID.NuclearMedicineImageStorage,
+		UID.PositronEmissionTomographyImageStorage,
+		UID.VLPhotographicImageStorage,
+		UID.RTImageStorage,
+		UID.RTDoseStorage,
+		UID.SegmentationStorage
+	};
+
+	/**
+	 * Storage SOP classes without pixel data accepted on a C-GET association
+	 */
+	private static final String otherClasses[] = {
+		UID.RTStructureSetStorage,
+		UID.RTPlanStorage,
+		UID.GrayscaleSoftcopyPresentationStateStorage,
+		UID.BasicTextSRStorage,
+		UID.EnhancedSRStorage,
+		UID.ComprehensiveSRStorage,
+		UID.KeyObjectSelectionDocumentStorage,
+		UID.EncapsulatedPDFStorage
+	};
+
+	static {
+		// C-STORE requests arrive on the associations opened by the pool
+		DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+		serviceRegistry.addDicomService(new CStoreHandler());
+
+		AssociationPool.setDimseRQHandler(serviceRegistry);
+	}
+
+	public GetScu(RetrieveParameters params)
+	{
+		super(params, UID.StudyRootQueryRetrieveInformationModelGET);
+	}
+
+	@Override
+	protected String getOperation()
+	{
+		return "C-GET";
+	}
+
+	@Override
+	protected RetrieveScu createPart(RetrieveParameters params)
+	{
+		return new GetScu(params);
+	}
+
+	@Override
+	protected boolean isReceivedInline()
+	{
+		return true;
+	}
+
+	@Override
+	protected Supplier<AAssociateRQ> getRequestFactory()
+	{
+		Supplier<AAssociateRQ> factory = super.getRequestFactory();
+
+		return () -> addStorageContexts(factory.get());
+	}
+
+	private static AAssociateRQ addStorageContexts(AAssociateRQ rq)
+	{
+		for (String cuid : imageClasses) {
+			addStorageContext(rq, cuid, transferSyntaxes);
+
+			for (String tsuid : compressedTransferSyntaxes) {
+				addStorageContext(rq, cuid, tsuid);
+			}
+		}
+
+		for (String cuid : otherClasses) {
+			addStorageContext(rq, cuid, transferSyntaxes);
+		}
+
+		return rq;
+	}
+
+	private static void addStorageContext(AAssociateRQ rq,
+										  String cuid,
+										  String... tsuids)
+	{
+		int pcid = rq.getNumberOfPresentationContexts() * 2 + 1;
+
+		rq.addPresentationContext(new PresentationContext(pcid, cuid, tsuids));
+
+		if (rq.getRoleSelectionFor(cuid) == null) {
+			rq.addRoleSelection(new RoleSelection(cuid, false, true));
+		}
+	}
+
+	@Override
+	protected RetrieveHandler send() throws Exception
+	{
+		RetrieveHandler rsp;
+		try {
+			Association assoc = connect();
+
+			// http://dicom.nema.org/medical/dicom/2016b/output/chtml/part04/sect_C.4.3.html
+			rsp = createHandler(assoc.nextMessageID());
+			assoc.cget(getSopClass(),
+					   0,
+					   buildKeys(),
+					   null,
+					   rsp);
+
+
+			awaitResponses(assoc, rsp);
+		}
+		catch (Exception ex) {
+			reportFailure();
+
+			discard();
+
+			throw ex;
+		}
+
+		reportOutcome(rsp);
+
+		releaseGracefully();
+
+		return rsp;
+	}
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import org.apache.commons.lang3.StringUtils;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the metadata of the objects in the cache, used to answer series
+ * and instance level queries for cached studies without querying the remote
+ * AE.
+ * <p>
+ * The attributes of each stored object, without its bulk data, are appended
+ * to a file in the study directory, so the index is removed together with
+ * the study. A query is only answered if its study (or series) was retrieved
+ * completely and the index lists every cached object of the study.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class MetadataIndex
+{
+	private static final Logger logger = LoggerFactory.getLogger(MetadataIndex.class);
+
+	private static final boolean enabled = Environment.getPropertyAsBoolean(QIDO_LOCAL_INDEX);
+
+	private static final String FILE_NAME = "metadata.idx";
+
+	/**
+	 * Maximum number of studies whose index is kept in memory
+	 */
+	private static final int MAX_LOADED = 64;
+
+	private static final int BULK_DATA_TAGS[] = {
+		Tag.PixelData,
+		Tag.FloatPixelData,
+		Tag.DoubleFloatPixelData,
+		Tag.EncapsulatedDocument,
+		Tag.WaveformSequence,
+		Tag.SpectroscopyData
+	};
+
+	private static final Object locks[] = new Object[64];
+
+	private static final LinkedHashMap<String, Study> loaded
+			= new LinkedHashMap<String, Study>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Study> eldest)
+		{
+			return size() > MAX_LOADED;
+		}
+
+	};
+
+	static {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private MetadataIndex()
+	{
+	}
+
+	/**
+	 * Determine if queries are answered from the index
+	 *
+	 * @return true if the index is enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Add a stored object to the index of its study
+	 *
+	 * @param obj the object (cannot be null)
+	 */
+	static void add(Attributes obj)
+	{
+		if (!enabled) {
+			return;
+		}
+
+		String studyUid = obj.getString(Tag.StudyInstanceUID);
+		if (StringUtils.isBlank(studyUid)) {
+			return;
+		}
+
+		Attributes metadata = new Attributes(obj);
+		for (int tag : BULK_DATA_TAGS) {
+			metadata.remove(tag);
+		}
+
+		// Not written while the study is being purged
+		Lock lock = CacheManager.getStudyLock(studyUid).readLock();
+		synchronized (lockFor(studyUid)) {
+			lock.lock();
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (DicomOutputStream dos = new DicomOutputStream(bytes,
+																   UID.ExplicitVRLittleEndian)) {
+					dos.writeDataset(null, metadata);
+				}
+
+				File file = getFile(studyUid);
+				try (DataOutputStream out = new DataOutputStream(
+						new FileOutputStream(file, true))) {
+					out.writeInt(bytes.size());
+					bytes.writeTo(out);
+				}
+
+				CacheReaper.recordWrite(studyUid, bytes.size() + 4);
+
+				synchronized (loaded) {
+					Study study = loaded.get(studyUid);
+					if (study != null && study.isComplete()) {
+						study.put(metadata);
+					}
+					else {
+						// Counted before this object was indexed, so read it again
+						loaded.remove(studyUid);
+					}
+				}
+			}
+			catch (IOException ex) {
+				logger.warn("Unable to index object of study " + studyUid, ex);
+
+				// The index no longer lists every object of the study
+				synchronized (loaded) {
+					loaded.remove(studyUid);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Forget the index of a study that is removed from the cache. The file
+	 * is removed with the study directory.
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 */
+	static void remove(String studyUid)
+	{
+		synchronized (loaded) {
+			loaded.remove(studyUid);
+		}
+	}
+
+	/**
+	 * Determine if a file is the index of a study
+	 *
+	 * @param file the file to check (cannot be null)
+	 * @return true if the file is an index
+	 */
+	static boolean isIndexFile(File file)
+	{
+		return FILE_NAME.equals(file.getName());
+	}
+
+	/**
+	 * Answer a series or instance level query from the index. Only queries
+	 * for a single study that is completely cached can be answered.
+	 *
+	 * @param params the query parameters (cannot be null)
+	 * @return the matches or null if the query has to be sent to the remote
+	 * AE
+	 */
+	public static List<Attributes> query(QueryParameters params)
+	{
+		if (!enabled || params.getLevel() == Level.STUDY) {
+			return null;
+		}
+
+		Attributes keys = params.getParameters();
+		String studyUid = keys.getString(Tag.StudyInstanceUID);
+		String seriesUid = keys.getString(Tag.SeriesInstanceUID);
+		if (!isSingleUid(studyUid)) {
+			return null;
+		}
+
+		RetrieveParameters scope = params.getLevel() == Level.IMAGE && isSingleUid(seriesUid)
+								   ? new RetrieveParameters(studyUid, seriesUid, null, Level.SERIES)
+								   : new RetrieveParameters(studyUid, null, null, Level.STUDY);
+
+		CacheEntry entry = CacheManager.peekEntry(scope);
+		if (entry == null || entry.getStatus() != COMPLETED) {
+			return null;
+		}
+
+		Study study;
+		try {
+			study = load(studyUid);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load index of study " + studyUid, ex);
+
+			return null;
+		}
+
+		if (study == null) {
+			return null;
+		}
+
+		Attributes returnKeys = new Attributes(params.getIncludedAttributes());
+		returnKeys.addAll(keys);
+
+		List<Attributes> results = new ArrayList();
+		if (params.getLevel() == Level.SERIES) {
+			for (List<Attributes> series : study.getSeries()) {
+				Attributes first = series.get(0);
+				if (first.matches(keys, params.isFuzzyMatchingEnabled(), false)) {
+					Attributes result = select(first, returnKeys, Level.SERIES);
+					if (returnKeys.contains(Tag.NumberOfSeriesRelatedInstances)) {
+						result.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, series.size());
+					}
+
+					results.add(result);
+				}
+			}
+		}
+		else {
+			for (List<Attributes> series : study.getSeries()) {
+				for (Attributes instance : series) {
+					if (instance.matches(keys, params.isFuzzyMatchingEnabled(), false)) {
+						results.add(select(instance, returnKeys, Level.IMAGE));
+					}
+				}
+			}
+		}
+
+		int from = Math.min(Math.max(0, params.getOffset()), results.size());
+		int to = params.getLimit() > 0
+				 ? (int) Math.min((long) from + params.getLimit(), results.size())
+				 : results.size();
+
+		logger.debug("Answered {} level query for study {} from the index",
+					 params.getLevel(), studyUid);
+
+		return new ArrayList(results.subList(from, to));
+	}
+
+	private static boolean isSingleUid(String uid)
+	{
+		return RetrieveParameters.isValidUid(uid);
+	}
+
+	/**
+	 * Select the return keys of a query from an object. Keys the object does
+	 * not have are returned empty.
+	 */
+	private static Attributes select(Attributes obj, Attributes returnKeys, Level level)
+	{
+		Attributes result = new Attributes(obj, returnKeys);
+		for (int tag : returnKeys.tags()) {
+			if (!result.contains(tag)) {
+				result.setNull(tag, returnKeys.getVR(tag));
+			}
+		}
+		result.setString(Tag.QueryRetrieveLevel, VR.CS, level.name());
+
+		return result;
+	}
+
+	private static Study load(String studyUid) throws IOException
+	{
+		synchronized (lockFor(studyUid)) {
+			Study study;
+			synchronized (loaded) {
+				study = loaded.get(studyUid);
+			}
+
+			if (study == null) {
+				study = read(studyUid);
+
+				synchronized (loaded) {
+					loaded.put(studyUid, study);
+				}
+			}
+
+			return study.isComplete() ? study : null;
+		}
+	}
+
+	private static Study read(String studyUid) throws IOException
+	{
+		Study study = new Study();
+		boolean valid = true;
+
+		File file = getFile(studyUid);
+		if (file.isFile()) {
+			long remaining = file.length();
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)))) {
+				while (remaining > 0) {
+					// A record that was not fully written leaves the rest of
+					// the file misaligned, so it cannot be read any further
+					int length = remaining >= 4 ? in.readInt() : -1;
+					if (length < 0 || length > remaining - 4) {
+						valid = false;
+
+						break;
+					}
+
+					byte record[] = new byte[length];
+					in.readFully(record);
+					remaining -= length + 4;
+
+					DicomInputStream din = new DicomInputStream(
+							new ByteArrayInputStream(record), UID.ExplicitVRLittleEndian);
+					study.put(din.readDataset(-1, -1));
+				}
+			}
+			catch (IOException | RuntimeException ex) {
+				logger.warn("Unable to read index of study " + studyUid, ex);
+
+				valid = false;
+			}
+		}
+
+		RetrieveParameters params = new RetrieveParameters(studyUid, null, null, Level.STUDY);
+		int cached = CacheManager.getInstanceFiles(params).size();
+
+		// Objects cached before the index was enabled are not listed
+		study.complete = valid && study.complete && study.size() == cached;
+		if (!study.complete) {
+			logger.debug("Index of study {} lists {} of {} cached objects",
+						 studyUid, study.size(), cached);
+		}
+
+		return study;
+	}
+
+	private static File getFile(String studyUid)
+	{
+		return new File(CacheManager.buildFile(studyUid, null, null, null), FILE_NAME);
+	}
+
+	private static Object lockFor(String studyUid)
+	{
+		return locks[Math.floorMod(studyUid.hashCode(), locks.length)];
+	}
+
+	/**
+	 * Metadata of the cached objects of a study, grouped by series
+	 */
+	private static class Study
+	{
+		private final Map<String, Map<String, Attributes>> series = new LinkedHashMap();
+
+		private volatile boolean complete = true;
+
+		private synchronized void put(Attributes metadata)
+		{
+			String seriesUid = metadata.getString(Tag.SeriesInstanceUID);
+			String instanceUid = metadata.getString(Tag.SOPInstanceUID);
+			if (StringUtils.isAnyBlank(seriesUid, instanceUid)) {
+				complete = false;
+
+				return;
+			}
+
+			series.computeIfAbsent(seriesUid, k -> new LinkedHashMap())
+					.put(instanceUid, metadata);
+		}
+
+		private synchronized int size()
+		{
+			return series.values().stream().mapToInt(Map::size).sum();
+		}
+
+		private synchronized List<List<Attributes>> getSeries()
+		{
+			List<List<Attributes>> result = new ArrayList();
+			for (Map<String, Attributes> instances : series.values()) {
+				result.add(new ArrayList(instances.values()));
+			}
+
+			return result;
+		}
+
+		private boolean isComplete()
+		{
+			return complete;
+		}
+
+	}
+
+}
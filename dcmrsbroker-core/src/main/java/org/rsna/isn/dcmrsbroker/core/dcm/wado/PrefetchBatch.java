@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.time.DateUtils;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A batch of retrieves submitted to warm the cache.
+ * <p>
+ * Requests that are already cached or covered by a running retrieve do not
+ * start a new retrieve. Retrieves that have not started by the deadline of
+ * the batch are dropped. A request that cannot be submitted is counted as
+ * failed without affecting the rest of the batch.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class PrefetchBatch
+{
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchBatch.class);
+
+	private static final long RETENTION = DateUtils.MILLIS_PER_HOUR;
+
+	private static final long CLEANUP_INTERVAL_IN_MIN = 10;
+
+	private static final ConcurrentHashMap<String, PrefetchBatch> batches
+			= new ConcurrentHashMap();
+
+	static {
+		ExecutorServiceFactory.getScheduledService()
+				.scheduleWithFixedDelay(PrefetchBatch::cleanup,
+										CLEANUP_INTERVAL_IN_MIN,
+										CLEANUP_INTERVAL_IN_MIN,
+										TimeUnit.MINUTES);
+	}
+
+	private final String id = UUID.randomUUID().toString();
+
+	private final long created = System.currentTimeMillis();
+
+	private final RetrievePriority priority;
+
+	private final long deadline;
+
+	private final List<RetrieveParameters> items;
+
+	private int cached;
+
+	private int attached;
+
+	private int started;
+
+	private final Set<RetrieveParameters> rejected
+			= Collections.newSetFromMap(new IdentityHashMap());
+
+	private PrefetchBatch(List<RetrieveParameters> items,
+						  RetrievePriority priority,
+						  long deadline)
+	{
+		this.items = Collections.unmodifiableList(new ArrayList(items));
+		this.priority = priority;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Submit a batch of retrieves
+	 *
+	 * @param items the requests to retrieve (cannot be null)
+	 * @param priority the priority of the retrieves (cannot be null)
+	 * @param deadline the time (in ms since the epoch) by which the retrieves
+	 * must have started or 0 if there is no deadline
+	 * @return the batch
+	 */
+	public static PrefetchBatch submit(List<RetrieveParameters> items,
+									   RetrievePriority priority,
+									   long deadline)
+	{
+		PrefetchBatch batch = new PrefetchBatch(items, priority, deadline);
+		for (RetrieveParameters params : batch.items) {
+			try {
+				RetrieveScu scu = RetrieveScu.create(params, priority);
+				scu.getJob().setDeadline(deadline);
+
+				CacheEntry entry = scu.doRetrieve();
+				if (entry.getJob() == scu.getJob()) {
+					batch.started++;
+				}
+				else if (entry.getStatus() == CacheEntry.Status.IN_PROGRESS) {
+					batch.attached++;
+				}
+				else {
+					batch.cached++;
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to submit " + params + " of prefetch batch "
+							+ batch.id, ex);
+
+				batch.rejected.add(params);
+			}
+		}
+
+		batches.put(batch.id, batch);
+
+		logger.info("Submitted prefetch batch {}. Items: {}. Started: {}. "
+					+ "Already running: {}. Already cached: {}. Rejected: {}.",
+					batch.id, batch.items.size(), batch.started,
+					batch.attached, batch.cached, batch.rejected.size());
+
+		return batch;
+	}
+
+	/**
+	 * Get a batch
+	 *
+	 * @param id the batch ID
+	 * @return the batch or null if there is no such batch
+	 */
+	public static PrefetchBatch get(String id)
+	{
+		return batches.get(id);
+	}
+
+	private static void cleanup()
+	{
+		long now = System.currentTimeMillis();
+		batches.values().removeIf(b -> now - b.created > RETENTION
+									   && b.getProgress().isDone());
+	}
+
+	/**
+	 * Get the batch ID
+	 *
+	 * @return the ID
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	/**
+	 * Get the time the batch was submitted
+	 *
+	 * @return the time in ms since the epoch
+	 */
+	public long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * Get the priority of the retrieves
+	 *
+	 * @return the priority
+	 */
+	public RetrievePriority getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * Get the deadline of the batch
+	 *
+	 * @return the time in ms since the epoch or 0 if there is no deadline
+	 */
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * Get the number of requests in the batch
+	 *
+	 * @return the number
+	 */
+	public int getSize()
+	{
+		return items.size();
+	}
+
+	/**
+	 * Get the number of requests that were cached when the batch was
+	 * submitted
+	 *
+	 * @return the number
+	 */
+	public int getCached()
+	{
+		return cached;
+	}
+
+	/**
+	 * Get the number of requests that were covered by a running retrieve when
+	 * the batch was submitted
+	 *
+	 * @return the number
+	 */
+	public int getAttached()
+	{
+		return attached;
+	}
+
+	/**
+	 * Get the number of retrieves the batch started
+	 *
+	 * @return the number
+	 */
+	public int getStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * Get the number of requests that could not be submitted. They are
+	 * counted as failed.
+	 *
+	 * @return the number
+	 */
+	public int getRejected()
+	{
+		return rejected.size();
+	}
+
+	/**
+	 * Get the current state of the requests in the batch
+	 *
+	 * @return the progress
+	 */
+	public Progress getProgress()
+	{
+		Progress progress = new Progress();
+		for (RetrieveParameters params : items) {
+			if (rejected.contains(params)) {
+				progress.failed++;
+
+				continue;
+			}
+
+			CacheEntry entry = CacheManager.peekEntry(params);
+			if (entry == null) {
+				progress.dropped++;
+			}
+			else {
+				switch (entry.getStatus()) {
+					case COMPLETED:
+						progress.completed++;
+						break;
+					case FAILED:
+						progress.failed++;
+						break;
+					default:
+						progress.inProgress++;
+				}
+			}
+		}
+
+		return progress;
+	}
+
+	/**
+	 * Number of requests of a batch in each state
+	 */
+	public static class Progress
+	{
+		private int completed;
+
+		private int failed;
+
+		private int inProgress;
+
+		private int dropped;
+
+		private Progress()
+		{
+		}
+
+		/**
+		 * @return the number of requests that are in the cache
+		 */
+		public int getCompleted()
+		{
+			return completed;
+		}
+
+		/**
+		 * @return the number of requests that failed
+		 */
+		public int getFailed()
+		{
+			return failed;
+		}
+
+		/**
+		 * @return the number of requests that are queued or being retrieved
+		 */
+		public int getInProgress()
+		{
+			return inProgress;
+		}
+
+		/**
+		 * @return the number of requests that were dropped (e.g. because the
+		 * deadline passed) or have since been evicted from the cache
+		 */
+		public int getDropped()
+		{
+			return dropped;
+		}
+
+		/**
+		 * @return true if none of the requests are queued or being retrieved
+		 */
+		public boolean isDone()
+		{
+			return inProgress == 0;
+		}
+
+	}
+
+}
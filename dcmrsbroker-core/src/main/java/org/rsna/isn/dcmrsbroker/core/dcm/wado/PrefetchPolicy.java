@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speculatively retrieves studies returned by study level QIDO queries so
+ * that the WADO requests that usually follow are served from the cache. Also
+ * expands interactive instance and series retrieves to the enclosing series
+ * or study.
+ * <p>
+ * Supported policies:
+ * <ul>
+ * <li>none - nothing is prefetched</li>
+ * <li>newest - the newest studies (by study date and time) in the result</li>
+ * <li>patient - all studies in the result, but only for queries on a
+ * specific patient ID</li>
+ * </ul>
+ * Prefetches are limited per patient within a time window and globally by
+ * the number of prefetches that are running. Nothing is prefetched while the
+ * cache is above its low watermark.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class PrefetchPolicy
+{
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchPolicy.class);
+
+	private static final String policy = Environment.getProperty(WADO_PREFETCH_POLICY);
+
+	private static final int maxStudies = Environment.getPropertyAsInt(WADO_PREFETCH_MAX_STUDIES);
+
+	private static final int maxPerPatient = Environment.getPropertyAsInt(WADO_PREFETCH_MAX_PER_PATIENT);
+
+	private static final long window = Environment.getPropertyAsInt(WADO_PREFETCH_WINDOW_IN_MIN) * DateUtils.MILLIS_PER_MINUTE;
+
+	private static final int maxRunning = Environment.getPropertyAsInt(WADO_PREFETCH_MAX_RUNNING);
+
+	private static final String expandToLevel = Environment.getProperty(WADO_EXPAND_TO_LEVEL);
+
+	/**
+	 * Times of the recent prefetches for each patient
+	 */
+	private static final ConcurrentHashMap<String, Deque<Long>> history = new ConcurrentHashMap();
+
+	private static final Comparator<Attributes> newestFirst
+			= Comparator.comparing(PrefetchPolicy::getStudyDateTime).reversed();
+
+	static {
+		if (!"none".equalsIgnoreCase(policy)
+			&& !"newest".equalsIgnoreCase(policy)
+			&& !"patient".equalsIgnoreCase(policy)) {
+			throw new ExceptionInInitializerError("Unsupported prefetch policy: " + policy);
+		}
+
+		if (!"none".equalsIgnoreCase(expandToLevel)
+			&& !"series".equalsIgnoreCase(expandToLevel)
+			&& !"study".equalsIgnoreCase(expandToLevel)) {
+			throw new ExceptionInInitializerError("Unsupported expansion level: " + expandToLevel);
+		}
+
+		ExecutorServiceFactory.getScheduledService()
+				.scheduleWithFixedDelay(PrefetchPolicy::pruneHistory,
+										Math.max(window, DateUtils.MILLIS_PER_MINUTE),
+										Math.max(window, DateUtils.MILLIS_PER_MINUTE),
+										TimeUnit.MILLISECONDS);
+	}
+
+	private PrefetchPolicy()
+	{
+	}
+
+	/**
+	 * Determine if studies returned by queries are prefetched
+	 *
+	 * @return true if a prefetch policy is configured
+	 */
+	public static boolean isEnabled()
+	{
+		return !"none".equalsIgnoreCase(policy);
+	}
+
+	/**
+	 * Prefetch studies from the results of a study level query according to
+	 * the configured policy. Returns immediately; the retrieves are queued
+	 * in the background.
+	 *
+	 * @param query the query keys (cannot be null)
+	 * @param results the query results (cannot be null)
+	 */
+	public static void onStudyQuery(Attributes query, List<Attributes> results)
+	{
+		if ("none".equalsIgnoreCase(policy) || results.isEmpty()) {
+			return;
+		}
+
+		List<Attributes> selected = select(query, results);
+		if (selected.isEmpty()) {
+			return;
+		}
+
+		ExecutorServiceFactory.getService().execute(() -> {
+			for (Attributes study : selected) {
+				try {
+					if (!prefetch(study)) {
+						break;
+					}
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to prefetch study "
+								+ study.getString(Tag.StudyInstanceUID), ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue a retrieve of the enclosing series or study after an interactive
+	 * retrieve of an instance or series was started, so that requests for
+	 * sibling objects attach to it instead of each starting their own
+	 * retrieve. The expansion runs at prefetch priority and is promoted if an
+	 * interactive request attaches to it.
+	 *
+	 * @param params the parameters of the started retrieve (cannot be null)
+	 */
+	static void onRetrieveStarted(RetrieveParameters params)
+	{
+		RetrieveParameters parent;
+		if ("study".equalsIgnoreCase(expandToLevel)
+			&& params.getLevel() != Level.STUDY) {
+			parent = new RetrieveParameters(params.getStudyUid(),
+											null,
+											null,
+											Level.STUDY);
+		}
+		else if ("series".equalsIgnoreCase(expandToLevel)
+				 && params.getLevel() == Level.IMAGE) {
+			parent = new RetrieveParameters(params.getStudyUid(),
+											params.getSeriesUid(),
+											null,
+											Level.SERIES);
+		}
+		else {
+			return;
+		}
+
+		if (!CacheReaper.isBelowLowWatermark()) {
+			logger.debug("Cache is above its low watermark. Not expanding {}.", params);
+
+			return;
+		}
+
+		try {
+			RetrieveScu scu = RetrieveScu.create(parent, RetrievePriority.PREFETCH);
+			if (scu.doRetrieve().getJob() == scu.getJob()) {
+				logger.info("Expanded request {} to {}", params, parent);
+			}
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to expand request " + params + " to " + parent, ex);
+		}
+	}
+
+	private static List<Attributes> select(Attributes query, List<Attributes> results)
+	{
+		if ("patient".equalsIgnoreCase(policy)) {
+			String patientId = query.getString(Tag.PatientID);
+			if (StringUtils.isBlank(patientId)
+				|| StringUtils.containsAny(patientId, '*', '?')) {
+				return new ArrayList();
+			}
+
+			return new ArrayList(results);
+		}
+		else {
+			List<Attributes> sorted = new ArrayList(results);
+			sorted.sort(newestFirst);
+
+			return sorted.subList(0, Math.min(maxStudies, sorted.size()));
+		}
+	}
+
+	private static String getStudyDateTime(Attributes study)
+	{
+		return StringUtils.defaultString(study.getString(Tag.StudyDate))
+			   + StringUtils.defaultString(study.getString(Tag.StudyTime));
+	}
+
+	/**
+	 * Prefetch a single study if the budgets allow it
+	 *
+	 * @param study the query result for the study
+	 * @return false if the global budget is exhausted and no further studies
+	 * should be prefetched
+	 * @throws Exception if the retrieve could not be started
+	 */
+	private static boolean prefetch(Attributes study) throws Exception
+	{
+		String studyUid = study.getString(Tag.StudyInstanceUID);
+		if (!RetrieveParameters.isValidUid(studyUid)) {
+			return true;
+		}
+
+		if (!CacheReaper.isBelowLowWatermark()) {
+			logger.debug("Cache is above its low watermark. Skipping prefetch.");
+
+			return false;
+		}
+
+		if (maxRunning > 0
+			&& RetrieveJob.countRunning(RetrievePriority.PREFETCH) >= maxRunning) {
+			logger.debug("Prefetch budget exhausted. Skipping study {}.", studyUid);
+
+			return false;
+		}
+
+		RetrieveParameters params = new RetrieveParameters(studyUid,
+														   null,
+														   null,
+														   Level.STUDY);
+
+		String patientId = StringUtils.defaultString(study.getString(Tag.PatientID));
+		while (true) {
+			Deque<Long> times = history.computeIfAbsent(patientId, k -> new ArrayDeque());
+			synchronized (times) {
+				if (history.get(patientId) != times) {
+					// Pruned after it was looked up
+					continue;
+				}
+
+				long now = System.currentTimeMillis();
+				prune(times, now);
+
+				if (maxPerPatient > 0 && times.size() >= maxPerPatient) {
+					logger.debug("Prefetch budget for patient {} exhausted. Skipping study {}.",
+								 patientId, studyUid);
+
+					return true;
+				}
+
+				RetrieveScu scu = RetrieveScu.create(params, RetrievePriority.PREFETCH);
+				CacheEntry entry = scu.doRetrieve();
+				if (entry.getJob() == scu.getJob()) {
+					logger.info("Prefetching study {} for patient {}", studyUid, patientId);
+
+					times.addLast(now);
+				}
+
+				return true;
+			}
+		}
+	}
+
+	private static void prune(Deque<Long> times, long now)
+	{
+		while (!times.isEmpty() && now - times.peekFirst() >= window) {
+			times.removeFirst();
+		}
+	}
+
+	private static void pruneHistory()
+	{
+		long now = System.currentTimeMillis();
+		history.entrySet().removeIf(e -> {
+			Deque<Long> times = e.getValue();
+			synchronized (times) {
+				prune(times, now);
+
+				return times.isEmpty();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.time.DateUtils;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of a running retrieve.
+ * <p>
+ * Combines the sub-operation counts from the pending C-MOVE/C-GET responses
+ * with the objects that have actually arrived. The arrival rate is used to
+ * estimate when the retrieve will complete. Finished jobs are kept for a
+ * short while so clients can read the outcome.
+ * <p>
+ * Interactive jobs also track whether a client still needs them. A job that
+ * no client has waited for or asked about for a while is cancelled.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class RetrieveJob
+{
+	private static final Logger logger = LoggerFactory.getLogger(RetrieveJob.class);
+
+	private static final long RETENTION = 5 * DateUtils.MILLIS_PER_MINUTE;
+
+	private static final long abandonTimeout = Environment.getPropertyAsInt(WADO_CANCEL_ABANDONED_AFTER_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long SWEEP_INTERVAL_IN_SECS = 5;
+
+	private static final ConcurrentHashMap<String, RetrieveJob> jobs
+			= new ConcurrentHashMap();
+
+	private final String id = UUID.randomUUID().toString();
+
+	private final RetrieveParameters params;
+
+	private final long started = System.currentTimeMillis();
+
+	/**
+	 * Latest counts reported by each request of the retrieve (more than one
+	 * if the retrieve was split into series requests)
+	 */
+	private final ConcurrentHashMap<Object, int[]> parts = new ConcurrentHashMap();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition changed = lock.newCondition();
+
+	private long version;
+
+	private ArrivalCounter counter;
+
+	private int initialCount;
+
+	private long countingSince;
+
+	private CacheEntry result;
+
+	private volatile RetrievePriority priority = RetrievePriority.INTERACTIVE;
+
+	private volatile long deadline;
+
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	private volatile long interestUntil = System.currentTimeMillis();
+
+	private volatile boolean pinned;
+
+	private volatile boolean cancelled;
+
+	private final Set<Runnable> cancelHandlers = ConcurrentHashMap.newKeySet();
+
+	static {
+		if (abandonTimeout > 0) {
+			ExecutorServiceFactory.getScheduledService()
+					.scheduleWithFixedDelay(RetrieveJob::cancelAbandoned,
+											SWEEP_INTERVAL_IN_SECS,
+											SWEEP_INTERVAL_IN_SECS,
+											TimeUnit.SECONDS);
+		}
+	}
+
+	RetrieveJob(RetrieveParameters params)
+	{
+		this.params = params;
+	}
+
+	/**
+	 * Get a job that is running or finished recently
+	 *
+	 * @param id the job ID
+	 * @return the job or null if there is no such job
+	 */
+	public static RetrieveJob get(String id)
+	{
+		return jobs.get(id);
+	}
+
+	/**
+	 * Count the running jobs of a priority
+	 *
+	 * @param priority the priority
+	 * @return the number of jobs that have not finished
+	 */
+	static int countRunning(RetrievePriority priority)
+	{
+		int count = 0;
+		for (RetrieveJob job : jobs.values()) {
+			if (job.priority == priority && job.getResult() == null) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Make the job visible to clients
+	 */
+	void start()
+	{
+		jobs.put(id, this);
+	}
+
+	/**
+	 * Set the counter for the objects received by the retrieve. Objects
+	 * already counted are excluded from the arrival rate.
+	 *
+	 * @param counter the counter (cannot be null)
+	 */
+	void setCounter(ArrivalCounter counter)
+	{
+		lock.lock();
+		try {
+			this.counter = counter;
+			this.initialCount = counter.getCount();
+			this.countingSince = System.currentTimeMillis();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		counter.setListener(this::signal);
+	}
+
+	/**
+	 * Discard the counts of a previous attempt
+	 */
+	void reset()
+	{
+		parts.clear();
+
+		signal();
+	}
+
+	/**
+	 * Record the counts from a C-MOVE/C-GET response
+	 *
+	 * @param part the request the response belongs to
+	 * @param remaining the number of remaining sub-operations
+	 * @param completed the number of completed sub-operations
+	 * @param failed the number of failed sub-operations
+	 * @param warning the number of sub-operations with warnings
+	 */
+	void update(Object part, int remaining, int completed, int failed, int warning)
+	{
+		parts.put(part, new int[]{remaining, completed, failed, warning});
+
+		signal();
+	}
+
+	/**
+	 * Mark the job as finished. The job is removed once the retention period
+	 * has passed.
+	 *
+	 * @param result the final cache entry of the request
+	 */
+	void finish(CacheEntry result)
+	{
+		lock.lock();
+		try {
+			this.result = result;
+			this.counter = null;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		signal();
+
+		ExecutorServiceFactory.getScheduledService()
+				.schedule(() -> jobs.remove(id), RETENTION, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Record that a client still needs the job until the given time (e.g.
+	 * because it was told to try again then)
+	 *
+	 * @param until the time in ms since the epoch
+	 */
+	public void addInterest(long until)
+	{
+		if (until > interestUntil) {
+			interestUntil = until;
+		}
+	}
+
+	/**
+	 * Record that a client is waiting for the job. Must be followed by a call
+	 * to {@link #removeWaiter()}.
+	 */
+	public void addWaiter()
+	{
+		waiters.incrementAndGet();
+	}
+
+	/**
+	 * Record that a client stopped waiting for the job
+	 */
+	public void removeWaiter()
+	{
+		addInterest(System.currentTimeMillis());
+
+		waiters.decrementAndGet();
+	}
+
+	/**
+	 * Keep the job running whether or not a client needs it (e.g. because a
+	 * prefetch depends on it)
+	 */
+	void pin()
+	{
+		pinned = true;
+	}
+
+	/**
+	 * Determine if the job was cancelled because no client needed it
+	 *
+	 * @return true if the job was cancelled
+	 */
+	boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Add a handler that is run when the job is cancelled. The handler is run
+	 * right away if the job has already been cancelled.
+	 *
+	 * @param handler the handler (cannot be null)
+	 */
+	void addCancelHandler(Runnable handler)
+	{
+		cancelHandlers.add(handler);
+
+		if (cancelled && cancelHandlers.remove(handler)) {
+			handler.run();
+		}
+	}
+
+	void removeCancelHandler(Runnable handler)
+	{
+		cancelHandlers.remove(handler);
+	}
+
+	private boolean isAbandoned(long now)
+	{
+		return result == null
+			   && !pinned
+			   && !cancelled
+			   && priority == RetrievePriority.INTERACTIVE
+			   && waiters.get() == 0
+			   && now - interestUntil >= abandonTimeout;
+	}
+
+	private void cancel()
+	{
+		cancelled = true;
+
+		for (Runnable handler : cancelHandlers) {
+			if (cancelHandlers.remove(handler)) {
+				handler.run();
+			}
+		}
+
+		signal();
+	}
+
+	private static void cancelAbandoned()
+	{
+		long now = System.currentTimeMillis();
+		for (RetrieveJob job : jobs.values()) {
+			if (job.isAbandoned(now)) {
+				logger.info("Cancelling retrieve of {}. No client has needed it for {} ms.",
+							job.params, now - job.interestUntil);
+
+				job.cancel();
+			}
+		}
+	}
+
+	private void signal()
+	{
+		lock.lock();
+		try {
+			version++;
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the job ID
+	 *
+	 * @return the ID
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	/**
+	 * Get the parameters of the request that started the job
+	 *
+	 * @return the parameters
+	 */
+	public RetrieveParameters getParams()
+	{
+		return params;
+	}
+
+	/**
+	 * Get the priority of the job
+	 *
+	 * @return the priority
+	 */
+	public RetrievePriority getPriority()
+	{
+		return priority;
+	}
+
+	void setPriority(RetrievePriority priority)
+	{
+		this.priority = priority;
+	}
+
+	/**
+	 * Get the time by which the job must have started
+	 *
+	 * @return the time in ms since the epoch or 0 if there is no deadline
+	 */
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Determine if the deadline of the job has passed
+	 *
+	 * @return true if there is a deadline and it has passed
+	 */
+	boolean isExpired()
+	{
+		long tmp = deadline;
+
+		return tmp > 0 && System.currentTimeMillis() > tmp;
+	}
+
+	/**
+	 * Get the time the job was started
+	 *
+	 * @return the time in ms since the epoch
+	 */
+	public long getStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * Get the final cache entry of the request
+	 *
+	 * @return the entry or null if the job is still running
+	 */
+	public CacheEntry getResult()
+	{
+		lock.lock();
+		try {
+			return result;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private int sum(int index)
+	{
+		int total = -1;
+		for (int[] counts : parts.values()) {
+			if (counts[index] >= 0) {
+				total = Math.max(total, 0) + counts[index];
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Get the number of sub-operations remaining
+	 *
+	 * @return the number or -1 if not reported by the remote AE
+	 */
+	public int getRemaining()
+	{
+		return sum(0);
+	}
+
+	/**
+	 * Get the number of completed sub-operations
+	 *
+	 * @return the number or -1 if not reported by the remote AE
+	 */
+	public int getCompleted()
+	{
+		return sum(1);
+	}
+
+	/**
+	 * Get the number of failed sub-operations
+	 *
+	 * @return the number or -1 if not reported by the remote AE
+	 */
+	public int getFailed()
+	{
+		return sum(2);
+	}
+
+	/**
+	 * Get the number of sub-operations that completed with warnings
+	 *
+	 * @return the number or -1 if not reported by the remote AE
+	 */
+	public int getWarning()
+	{
+		return sum(3);
+	}
+
+	/**
+	 * Get the number of objects of the request that are in the cache
+	 *
+	 * @return the number or -1 if counting has not started
+	 */
+	public int getReceived()
+	{
+		lock.lock();
+		try {
+			return counter != null ? counter.getCount() : -1;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Estimate when the job will complete based on the number of objects left
+	 * and the rate at which objects have been arriving
+	 *
+	 * @return the time in ms since the epoch or -1 if no estimate can be made
+	 */
+	public long getEstimatedCompletion()
+	{
+		int remaining = getRemaining();
+		int completed = Math.max(0, getCompleted());
+		int warning = Math.max(0, getWarning());
+
+		lock.lock();
+		try {
+			if (counter == null || remaining < 0) {
+				return -1;
+			}
+
+			long now = System.currentTimeMillis();
+			long elapsed = now - countingSince;
+			int arrived = counter.getCount() - initialCount;
+			if (arrived < 1 || elapsed < 1) {
+				return -1;
+			}
+
+			long left = Math.max(0, remaining + completed + warning - arrived);
+			double rate = (double) arrived / elapsed;
+
+			return now + (long) (left / rate);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the version of the job's state. The version changes whenever the
+	 * counts, the number of received objects or the result change.
+	 *
+	 * @return the version
+	 */
+	public long getVersion()
+	{
+		lock.lock();
+		try {
+			return version;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the job finishes or the timeout expires
+	 *
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return the final cache entry of the request or null if the job is
+	 * still running
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public CacheEntry awaitResult(long timeout) throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while (result == null && nanos > 0) {
+				nanos = changed.awaitNanos(nanos);
+			}
+
+			return result;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the state of the job changes or the timeout expires
+	 *
+	 * @param lastVersion the last version seen by the caller
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return the current version
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long awaitChange(long lastVersion, long timeout)
+			throws InterruptedException
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		lock.lock();
+		try {
+			while (version == lastVersion && nanos > 0) {
+				nanos = changed.awaitNanos(nanos);
+			}
+
+			return version;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.StringUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.CircuitBreaker;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide registry of running retrieves.
+ * <p>
+ * Ensures that only one retrieve is started for a given request. A request
+ * that is covered by a running retrieve (e.g. an instance of a study that is
+ * being retrieved) attaches to that retrieve instead of starting a new one.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class RetrieveRegistry
+{
+	private static final Logger logger = LoggerFactory.getLogger(RetrieveRegistry.class);
+
+	private static final int LOCK_STRIPES = 64;
+
+	private static final Object locks[] = new Object[LOCK_STRIPES];
+
+	private static final ConcurrentHashMap<String, Set<RetrieveParameters>> running
+			= new ConcurrentHashMap();
+
+	static {
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private RetrieveRegistry()
+	{
+	}
+
+	private static Object getLock(String studyUid)
+	{
+		return locks[(studyUid.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Get the cache entry for a request, starting a retrieve if the request
+	 * is neither cached nor covered by a running retrieve
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @param job tracks the progress of the retrieve if one is started. Its
+	 * priority is also applied to a running retrieve the request attaches to.
+	 * @param task the task that performs the retrieve for the request. It must
+	 * call {@link #finished(RetrieveParameters)} when done.
+	 * @param breaker the breaker of the remote AE. If it is open, a failed
+	 * entry is returned (but not cached) instead of starting a retrieve.
+	 * @return the cache entry
+	 * @throws IOException if the cache could not be updated
+	 */
+	static CacheEntry submit(RetrieveParameters params,
+							 RetrieveJob job,
+							 Runnable task,
+							 CircuitBreaker breaker) throws IOException
+	{
+		String studyUid = params.getStudyUid();
+		synchronized (getLock(studyUid)) {
+			RetrieveParameters covering = find(params);
+			if (covering != null) {
+				CacheEntry entry = CacheManager.peekEntry(covering);
+				if (entry != null && entry.getStatus() == CacheEntry.Status.IN_PROGRESS) {
+					if (entry.getJob() != null) {
+						RetrieveScheduler.promote(entry.getJob(), job.getPriority());
+
+						entry.getJob().addInterest(System.currentTimeMillis());
+						if (job.getPriority() != RetrievePriority.INTERACTIVE) {
+							entry.getJob().pin();
+						}
+					}
+
+					logger.debug("Attached request {} to running retrieve {}",
+								 params, covering);
+
+					return entry;
+				}
+			}
+
+			CacheEntry entry = CacheManager.peekEntry(params);
+			if (entry != null) {
+				return entry;
+			}
+
+			if (breaker.isOpen()) {
+				return new CacheEntry("Remote AE " + breaker.getName()
+									  + " is unavailable", -1, -1, -1);
+			}
+
+			entry = CacheManager.setInProgress(params, job);
+			if (job.getPriority() != RetrievePriority.INTERACTIVE) {
+				job.pin();
+			}
+			job.start();
+
+			running.computeIfAbsent(studyUid, k -> ConcurrentHashMap.newKeySet())
+					.add(params);
+
+			try {
+				RetrieveScheduler.submit(breaker.getName(), job, task);
+			}
+			catch (RuntimeException ex) {
+				finished(params);
+
+				throw ex;
+			}
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Remove a retrieve from the registry. Must be called after the final
+	 * state of the retrieve has been written to the cache.
+	 *
+	 * @param params the parameters the retrieve was submitted with
+	 */
+	static void finished(RetrieveParameters params)
+	{
+		String studyUid = params.getStudyUid();
+		synchronized (getLock(studyUid)) {
+			Set<RetrieveParameters> set = running.get(studyUid);
+			if (set != null) {
+				set.remove(params);
+
+				if (set.isEmpty()) {
+					running.remove(studyUid);
+				}
+			}
+		}
+	}
+
+	private static RetrieveParameters find(RetrieveParameters params)
+	{
+		Set<RetrieveParameters> set = running.get(params.getStudyUid());
+		if (set == null) {
+			return null;
+		}
+
+		for (RetrieveParameters candidate : set) {
+			if (covers(candidate, params)) {
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean covers(RetrieveParameters outer, RetrieveParameters inner)
+	{
+		if (StringUtils.isBlank(outer.getSeriesUid())) {
+			return true;
+		}
+		else if (!outer.getSeriesUid().equals(inner.getSeriesUid())) {
+			return false;
+		}
+		else if (StringUtils.isBlank(outer.getInstanceUid())) {
+			return true;
+		}
+		else {
+			return outer.getInstanceUid().equals(inner.getInstanceUid());
+		}
+	}
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules retrieve attempts.
+ * <p>
+ * Each remote AE has a limit on the number of attempts that run at the same
+ * time. Attempts over the limit are queued by priority and then in the order
+ * they were submitted. Some of the slots are reserved for interactive
+ * retrieves so that bulk work cannot delay a client that is waiting.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class RetrieveScheduler
+{
+	private static final Logger logger = LoggerFactory.getLogger(RetrieveScheduler.class);
+
+	private static final int maxConcurrent = Environment.getPropertyAsInt(WADO_MAX_CONCURRENT_RETRIEVES);
+
+	private static final int reservedInteractive = Environment.getPropertyAsInt(WADO_RESERVED_INTERACTIVE_RETRIEVES);
+
+	private static final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap();
+
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private RetrieveScheduler()
+	{
+	}
+
+	/**
+	 * Queue a retrieve attempt
+	 *
+	 * @param remoteAe the name of the remote AE the attempt is sent to
+	 * @param job the job the attempt belongs to. Its priority determines the
+	 * position in the queue.
+	 * @param task the attempt
+	 */
+	static void submit(String remoteAe, RetrieveJob job, Runnable task)
+	{
+		lanes.computeIfAbsent(remoteAe, Lane::new)
+				.submit(new Ticket(job, task));
+	}
+
+	/**
+	 * Raise the priority of a job. Queued attempts of the job move ahead of
+	 * lower priority work.
+	 *
+	 * @param job the job (cannot be null)
+	 * @param priority the new priority. Ignored if it is not higher than the
+	 * current priority.
+	 */
+	static void promote(RetrieveJob job, RetrievePriority priority)
+	{
+		if (priority.compareTo(job.getPriority()) >= 0) {
+			return;
+		}
+
+		logger.debug("Promoting job {} to {}", job.getId(), priority);
+
+		job.setPriority(priority);
+		if (priority == RetrievePriority.INTERACTIVE) {
+			// A client is waiting so the job must run whatever the deadline
+			job.setDeadline(0);
+		}
+
+		for (Lane lane : lanes.values()) {
+			lane.promote(job, priority);
+		}
+	}
+
+	/**
+	 * Get the metrics of the remote AEs that have been used
+	 *
+	 * @return the metrics (one per remote AE)
+	 */
+	public static List<LaneMetrics> getMetrics()
+	{
+		List<LaneMetrics> metrics = new ArrayList();
+		for (Lane lane : lanes.values()) {
+			metrics.add(lane.getMetrics());
+		}
+
+		return Collections.unmodifiableList(metrics);
+	}
+
+	private static class Ticket implements Comparable<Ticket>
+	{
+		private final RetrieveJob job;
+
+		private final Runnable task;
+
+		private final long seq = sequence.incrementAndGet();
+
+		private final long queued = System.currentTimeMillis();
+
+		private RetrievePriority priority;
+
+		private Ticket(RetrieveJob job, Runnable task)
+		{
+			this.job = job;
+			this.task = task;
+			this.priority = job.getPriority();
+		}
+
+		@Override
+		public int compareTo(Ticket other)
+		{
+			int cmp = priority.compareTo(other.priority);
+
+			return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+		}
+
+	}
+
+	private static class Lane
+	{
+		private final String name;
+
+		private final PriorityQueue<Ticket> queue = new PriorityQueue();
+
+		private int running;
+
+		private final long dispatched[] = new long[RetrievePriority.values().length];
+
+		private final long totalWait[] = new long[RetrievePriority.values().length];
+
+		private final long maxWait[] = new long[RetrievePriority.values().length];
+
+		private Lane(String name)
+		{
+			this.name = name;
+		}
+
+		private synchronized void submit(Ticket ticket)
+		{
+			queue.add(ticket);
+
+			dispatch();
+		}
+
+		private synchronized void promote(RetrieveJob job, RetrievePriority priority)
+		{
+			List<Ticket> moved = new ArrayList();
+			for (Iterator<Ticket> it = queue.iterator(); it.hasNext();) {
+				Ticket ticket = it.next();
+				if (ticket.job == job) {
+					it.remove();
+					moved.add(ticket);
+				}
+			}
+
+			for (Ticket ticket : moved) {
+				ticket.priority = priority;
+				queue.add(ticket);
+			}
+
+			if (!moved.isEmpty()) {
+				dispatch();
+			}
+		}
+
+		private int getLimit(RetrievePriority priority)
+		{
+			if (maxConcurrent < 1) {
+				return Integer.MAX_VALUE;
+			}
+			else if (priority == RetrievePriority.INTERACTIVE) {
+				return maxConcurrent;
+			}
+			else {
+				return Math.max(1, maxConcurrent - reservedInteractive);
+			}
+		}
+
+		private void dispatch()
+		{
+			while (!queue.isEmpty()) {
+				Ticket ticket = queue.peek();
+				if (running >= getLimit(ticket.priority)) {
+					return;
+				}
+
+				queue.poll();
+				running++;
+
+				int i = ticket.priority.ordinal();
+				long wait = System.currentTimeMillis() - ticket.queued;
+				dispatched[i]++;
+				totalWait[i] += wait;
+				maxWait[i] = Math.max(maxWait[i], wait);
+
+				try {
+					ExecutorServiceFactory.getService().execute(() -> {
+						try {
+							ticket.task.run();
+						}
+						finally {
+							finished();
+						}
+					});
+				}
+				catch (RuntimeException ex) {
+					running--;
+
+					throw ex;
+				}
+			}
+		}
+
+		private synchronized void finished()
+		{
+			running--;
+
+			dispatch();
+		}
+
+		private synchronized LaneMetrics getMetrics()
+		{
+			LaneMetrics metrics = new LaneMetrics(name,
+												  maxConcurrent,
+												  running);
+
+			long now = System.currentTimeMillis();
+			for (Ticket ticket : queue) {
+				int i = ticket.priority.ordinal();
+				metrics.queued[i]++;
+				metrics.oldestWait[i] = Math.max(metrics.oldestWait[i],
+												 now - ticket.queued);
+			}
+
+			for (int i = 0; i < dispatched.length; i++) {
+				metrics.dispatched[i] = dispatched[i];
+				metrics.averageWait[i] = dispatched[i] > 0 ? totalWait[i] / dispatched[i] : 0;
+				metrics.maxWait[i] = maxWait[i];
+			}
+
+			return metrics;
+		}
+
+	}
+
+	/**
+	 * Snapshot of the scheduler state for a remote AE. Waits are in ms.
+	 */
+	public static class LaneMetrics
+	{
+		private final String name;
+
+		private final int limit;
+
+		private final int running;
+
+		private final int queued[] = new int[RetrievePriority.values().length];
+
+		private final long oldestWait[] = new long[RetrievePriority.values().length];
+
+		private final long dispatched[] = new long[RetrievePriority.values().length];
+
+		private final long averageWait[] = new long[RetrievePriority.values().length];
+
+		private final long maxWait[] = new long[RetrievePriority.values().length];
+
+		private LaneMetrics(String name, int limit, int running)
+		{
+			this.name = name;
+			this.limit = limit;
+			this.running = running;
+		}
+
+		/**
+		 * @return the remote AE in AET@host:port format
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return the maximum number of running attempts (0 if unlimited)
+		 */
+		public int getLimit()
+		{
+			return Math.max(0, limit);
+		}
+
+		/**
+		 * @return the number of running attempts
+		 */
+		public int getRunning()
+		{
+			return running;
+		}
+
+		/**
+		 * @param priority the priority
+		 * @return the number of queued attempts
+		 */
+		public int getQueued(RetrievePriority priority)
+		{
+			return queued[priority.ordinal()];
+		}
+
+		/**
+		 * @param priority the priority
+		 * @return how long the oldest queued attempt has been waiting
+		 */
+		public long getOldestWait(RetrievePriority priority)
+		{
+			return oldestWait[priority.ordinal()];
+		}
+
+		/**
+		 * @param priority the priority
+		 * @return the number of attempts started since startup
+		 */
+		public long getDispatched(RetrievePriority priority)
+		{
+			return dispatched[priority.ordinal()];
+		}
+
+		/**
+		 * @param priority the priority
+		 * @return the average time started attempts spent in the queue
+		 */
+		public long getAverageWait(RetrievePriority priority)
+		{
+			return averageWait[priority.ordinal()];
+		}
+
+		/**
+		 * @param priority the priority
+		 * @return the longest time a started attempt spent in the queue
+		 */
+		public long getMaxWait(RetrievePriority priority)
+		{
+			return maxWait[priority.ordinal()];
+		}
+
+	}
+
+}
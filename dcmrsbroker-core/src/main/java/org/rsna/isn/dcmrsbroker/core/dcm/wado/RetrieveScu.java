@@ -0,0 +1,1206 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Status;
+import org.rsna.isn.dcmrsbroker.core.dcm.Backend;
+import org.rsna.isn.dcmrsbroker.core.dcm.BackendGroup;
+import org.rsna.isn.dcmrsbroker.core.dcm.CircuitBreaker;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.dcm.Scu;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for SCUs that retrieve objects into the local cache.
+ * <p>
+ * Handles coalescing with other retrieves, retries, failing over between
+ * backends, the circuit breaker of the remote AE, splitting large studies
+ * into series retrieves and waiting for the objects to arrive. Subclasses
+ * send the actual DIMSE request.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public abstract class RetrieveScu extends Scu implements Runnable
+{
+	private static final Logger logger = LoggerFactory.getLogger(RetrieveScu.class);
+
+	private static final String retrieveMode = Environment.getProperty(WADO_RETRIEVE_MODE);
+
+	private static final long retryDelay = Environment.getPropertyAsInt(WADO_RETRY_DELAY_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final int retryAttempts = Environment.getPropertyAsInt(WADO_MAX_RETRY_ATTEMPTS);
+
+	private static final long maxRetryDelay = Environment.getPropertyAsInt(WADO_MAX_RETRY_DELAY_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long retrieveTimeout = Environment.getPropertyAsInt(WADO_RETRIEVE_TIMEOUT_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final int fanOutMinInstances = Environment.getPropertyAsInt(WADO_FAN_OUT_MIN_INSTANCES);
+
+	private static final int maxConcurrentMoves = Environment.getPropertyAsInt(WADO_MAX_CONCURRENT_MOVES);
+
+	private static final ConcurrentHashMap<String, Semaphore> permitsByAe = new ConcurrentHashMap();
+
+	private static final boolean ignoreMissing = Environment.getPropertyAsBoolean(WADO_IGNORE_MISSING_OBJECTS);
+
+	private static final boolean inventoryEnabled = Environment.getPropertyAsBoolean(WADO_INVENTORY);
+
+	/**
+	 * Maximum number of SOP instance UIDs in a single IMAGE level request
+	 */
+	private static final int MAX_UIDS_PER_REQUEST = 500;
+
+	private static final boolean hedgeRetrieves = Environment.getPropertyAsBoolean(WADO_HEDGE_RETRIEVES);
+
+	private final RetrieveParameters params;
+
+	private final Set<Backend> failedBackends = new HashSet();
+
+	private RetrieveJob job;
+
+	private ArrivalCounter counter;
+
+	private int attempt;
+
+	private RetrieveHandler handler;
+
+	private Throwable lastError;
+
+	private Map<String, Set<String>> inventory;
+
+	private String instanceUids[];
+
+	private volatile boolean aborted;
+
+	private volatile Runnable activeCancel;
+
+	protected RetrieveScu(RetrieveParameters params, String sopClass)
+	{
+		super(Environment.getProperty(WADO_LOCAL_AE),
+			  BackendGroup.getWado().select(),
+			  sopClass);
+
+		this.params = params;
+		this.job = new RetrieveJob(params);
+	}
+
+	/**
+	 * Create the SCU for the configured retrieve mode
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @return the SCU
+	 */
+	public static RetrieveScu create(RetrieveParameters params)
+	{
+		return create(params, RetrievePriority.INTERACTIVE);
+	}
+
+	/**
+	 * Create the SCU for the configured retrieve mode
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @param priority the priority of the retrieve (cannot be null)
+	 * @return the SCU
+	 */
+	public static RetrieveScu create(RetrieveParameters params,
+									 RetrievePriority priority)
+	{
+		RetrieveScu scu;
+		if ("cget".equalsIgnoreCase(retrieveMode)) {
+			scu = new GetScu(params);
+		}
+		else if ("cmove".equalsIgnoreCase(retrieveMode)) {
+			scu = new MoveScu(params);
+		}
+		else {
+			throw new IllegalStateException("Unsupported retrieve mode: "
+											+ retrieveMode);
+		}
+
+		scu.job.setPriority(priority);
+
+		return scu;
+	}
+
+	/**
+	 * Get the job that tracks the retrieve started by this SCU
+	 *
+	 * @return the job
+	 */
+	RetrieveJob getJob()
+	{
+		return job;
+	}
+
+	/**
+	 * Get the parameters of the request
+	 *
+	 * @return the parameters
+	 */
+	protected RetrieveParameters getParams()
+	{
+		return params;
+	}
+
+	/**
+	 * Get the name of the DIMSE operation used to retrieve objects
+	 *
+	 * @return the name (e.g. C-MOVE)
+	 */
+	protected abstract String getOperation();
+
+	/**
+	 * Create an SCU of the same type for part of the request
+	 *
+	 * @param params the parameters of the part
+	 * @return the SCU
+	 */
+	protected abstract RetrieveScu createPart(RetrieveParameters params);
+
+	/**
+	 * Send a single retrieve request for this SCU's parameters and wait for
+	 * the final response. Implementations must report the outcome to the
+	 * circuit breaker and release the association before returning.
+	 *
+	 * @return the handler holding the final response
+	 * @throws Exception if the request could not be sent
+	 */
+	protected abstract RetrieveHandler send() throws Exception;
+
+	/**
+	 * Determine if all objects have been received by the time the final
+	 * response arrives. If false, the objects arrive on a separate
+	 * association and have to be waited for.
+	 *
+	 * @return true if the objects arrive on the same association
+	 */
+	protected abstract boolean isReceivedInline();
+
+	/**
+	 * Build the identifier of the retrieve request
+	 *
+	 * @return the identifier
+	 */
+	protected Attributes buildKeys()
+	{
+		String level = params.getLevel().name();
+		String studyUid = params.getStudyUid();
+		String seriesUid = params.getSeriesUid();
+		String instanceUid = params.getInstanceUid();
+
+
+		Attributes keys = new Attributes();
+		keys.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+		keys.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		if (StringUtils.isNotBlank(seriesUid)) {
+			keys.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+		}
+		if (StringUtils.isNotBlank(instanceUid)) {
+			keys.setString(Tag.SOPInstanceUID, VR.UI, instanceUid);
+		}
+		else if (instanceUids != null) {
+			keys.setString(Tag.SOPInstanceUID, VR.UI, instanceUids);
+		}
+
+
+		keys.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+
+		return keys;
+	}
+
+	/**
+	 * Create the handler for the responses to a retrieve request. The counts
+	 * in the responses are reported to the job of the retrieve.
+	 *
+	 * @param msgId the message ID of the request
+	 * @return the handler
+	 */
+	protected RetrieveHandler createHandler(int msgId)
+	{
+		return new RetrieveHandler(msgId, job);
+	}
+
+	/**
+	 * Wait for the final response to a retrieve request. If the job is
+	 * cancelled while waiting, a C-CANCEL is sent for the request.
+	 *
+	 * @param assoc the association the request was sent on
+	 * @param rsp the handler of the request
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected void awaitResponses(Association assoc, RetrieveHandler rsp)
+			throws InterruptedException
+	{
+		Runnable cancel = () -> {
+			try {
+				logger.info("Sending C-CANCEL for {} request {}", getOperation(), params);
+
+				rsp.cancel(assoc);
+			}
+			catch (IOException ex) {
+				logger.debug("Unable to cancel " + getOperation()
+							 + " request for " + params, ex);
+			}
+		};
+
+		job.addCancelHandler(cancel);
+		activeCancel = cancel;
+		try {
+			if (aborted) {
+				cancel.run();
+			}
+
+			if (assoc.isReadyForDataTransfer()) {
+				assoc.waitForOutstandingRSP();
+			}
+		}
+		finally {
+			activeCancel = null;
+			job.removeCancelHandler(cancel);
+		}
+	}
+
+	/**
+	 * Stop the request of this SCU because its result is no longer needed.
+	 * A C-CANCEL is sent if the request is running and the association is
+	 * aborted. The outcome is not reported to the circuit breaker.
+	 */
+	private void abort()
+	{
+		aborted = true;
+
+		Runnable cancel = activeCancel;
+		if (cancel != null) {
+			cancel.run();
+		}
+
+		discard();
+	}
+
+	/**
+	 * Report the outcome of a request to the circuit breaker of the remote AE.
+	 * The remote AE is considered reachable if it sent a final response,
+	 * whatever the outcome of the request.
+	 *
+	 * @param rsp the handler of the request
+	 */
+	protected void reportOutcome(RetrieveHandler rsp)
+	{
+		if (aborted) {
+			return;
+		}
+
+		if (rsp.status == -1 || Status.isPending(rsp.status)) {
+			getBreaker().recordFailure();
+		}
+		else {
+			getBreaker().recordSuccess();
+		}
+	}
+
+	/**
+	 * Report a request that could not be sent or did not get a final
+	 * response to the circuit breaker of the remote AE
+	 */
+	protected void reportFailure()
+	{
+		if (!aborted) {
+			getBreaker().recordFailure();
+		}
+	}
+
+	/**
+	 * Get the circuit breaker of the remote AE
+	 *
+	 * @return the breaker
+	 */
+	protected CircuitBreaker getBreaker()
+	{
+		return getBackend().getBreaker();
+	}
+
+	/**
+	 * Get the cache entry for the request. Starts a retrieve in the background
+	 * if the request is not cached and is not covered by a running retrieve.
+	 *
+	 * @return the cache entry
+	 * @throws Exception if there was an error starting the retrieve
+	 */
+	public CacheEntry doRetrieve()
+			throws Exception
+	{
+		CacheEntry entry = RetrieveRegistry.submit(params, job, this, getBreaker());
+		if (entry.getJob() == job
+			&& job.getPriority() == RetrievePriority.INTERACTIVE) {
+			PrefetchPolicy.onRetrieveStarted(params);
+		}
+
+		return entry;
+	}
+
+	@Override
+	public void run()
+	{
+		boolean finished = true;
+		try {
+			if (counter == null) {
+				counter = ArrivalCounter.open(params);
+				job.setCounter(counter);
+			}
+
+			finished = attempt();
+		}
+		catch (Exception ex) {
+			logger.warn("Uncaught exception while processing "
+						+ getOperation() + " request for: " + params, ex);
+
+			fail(ex);
+		}
+		finally {
+			if (finished) {
+				if (counter != null) {
+					counter.close();
+				}
+
+				CacheEntry result = CacheManager.peekEntry(params);
+				if (result == null) {
+					// Dropped without being retrieved
+					String msg = job.isCancelled()
+								 ? "Cancelled because no client needed the request"
+								 : "Deadline passed before the request was retrieved";
+
+					result = new CacheEntry(msg, -1, -1, -1);
+				}
+
+				job.finish(result);
+
+				RetrieveRegistry.finished(params);
+			}
+		}
+	}
+
+	/**
+	 * Make a single retrieve attempt. If the attempt fails and there are
+	 * attempts left, the next one is scheduled and no thread is held while
+	 * waiting for it.
+	 *
+	 * @return true if the request is finished, false if a retry was scheduled
+	 * @throws Exception if the cache could not be updated
+	 */
+	private boolean attempt() throws Exception
+	{
+		if (job.isExpired() || job.isCancelled()) {
+			CacheManager.clearEntry(params);
+
+			logger.info("Dropping {} for request {}. {}",
+						getOperation(), params,
+						job.isCancelled() ? "No client needs it." : "Its deadline has passed.");
+
+			return true;
+		}
+
+		if (attempt > 0) {
+			if (isReceived()) {
+				setCompleted();
+
+
+				logger.info("Completed {} for request: {} after {} retries. Received: {}.",
+							getOperation(),
+							params,
+							attempt,
+							counter.getCount());
+
+				return true;
+			}
+
+
+			logger.warn("Retrying {} for request: {}.  This is retry #{}.",
+						getOperation(), params, attempt);
+		}
+
+		attempt++;
+
+		CircuitBreaker breaker = getBreaker();
+		if (breaker.allowRequest()) {
+			try {
+				if (retrieve()) {
+					return true;
+				}
+			}
+			finally {
+				// In case the attempt ended without sending a request
+				breaker.releaseTrial();
+			}
+		}
+		else {
+			handler = null;
+			lastError = new RuntimeException("Remote AE " + breaker.getName()
+											 + " is unavailable");
+
+			logger.warn("Skipping {} for request {}. Remote AE {} is unavailable.",
+						getOperation(), params, breaker.getName());
+		}
+
+		if (job.isCancelled()) {
+			CacheManager.clearEntry(params);
+
+			logger.info("Cancelled {} for request {}. No client needs it.",
+						getOperation(), params);
+
+			return true;
+		}
+
+		// Fail over to the next healthy backend without waiting for a retry
+		failedBackends.add(getBackend());
+		Backend next = BackendGroup.getWado().select(failedBackends);
+		if (next != null && next.isHealthy()) {
+			logger.warn("Failing over {} for request {} from {} to {}",
+						getOperation(), params, getBackend(), next);
+
+			setBackend(next);
+			RetrieveScheduler.submit(next.getName(), job, this);
+
+			return false;
+		}
+
+		if (attempt < retryAttempts) {
+			long delay = getRetryDelay(attempt);
+
+			logger.warn("Retrying {} request for {} in {} sec(s)",
+						getOperation(),
+						params,
+						DurationFormatUtils.formatDuration(delay, "s"));
+
+			ExecutorServiceFactory.getScheduledService()
+					.schedule(this::retry, delay, TimeUnit.MILLISECONDS);
+
+			return false;
+		}
+
+
+		String msg = "Timeout";
+		if (lastError != null) {
+			msg = StringUtils.defaultIfBlank(lastError.getMessage(),
+											 ExceptionUtils.getStackTrace(lastError));
+		}
+		else if (handler != null) {
+			msg = "DICOM Error: " + handler.status
+				  + ". DICOM Error Comment: " + handler.error;
+		}
+
+		if (handler != null) {
+			CacheManager.setFailed(params,
+								   msg,
+								   handler.completed,
+								   handler.failed,
+								   handler.remaining);
+		}
+		else {
+			CacheManager.setFailed(params, msg, -1, -1, -1);
+		}
+
+		logger.warn("{} request for: {} failed with error: {}",
+					getOperation(),
+					params,
+					msg);
+
+		return true;
+	}
+
+	/**
+	 * Mark a request that ended with an unexpected error as failed, so the
+	 * job does not finish with an in-progress entry
+	 */
+	private void fail(Exception error)
+	{
+		String msg = StringUtils.defaultIfBlank(error.getMessage(),
+												error.getClass().getName());
+		try {
+			CacheManager.setFailed(params, msg, -1, -1, -1);
+		}
+		catch (Exception ex) {
+			// The entry is updated in memory before the journal is written
+			logger.warn("Unable to record failure of request " + params, ex);
+		}
+	}
+
+	/**
+	 * Submit a retry to the best backend at the time of the retry
+	 */
+	private void retry()
+	{
+		failedBackends.clear();
+		setBackend(BackendGroup.getWado().select());
+
+		RetrieveScheduler.submit(getBackend().getName(), job, this);
+	}
+
+	/**
+	 * Get the delay before the given retry. The delay doubles with each
+	 * attempt up to the configured maximum. A random jitter of up to half the
+	 * delay is subtracted so that retries of requests that failed together
+	 * are spread out.
+	 *
+	 * @param attempt the number of attempts made so far (at least 1)
+	 * @return the delay in ms
+	 */
+	private static long getRetryDelay(int attempt)
+	{
+		long delay = retryDelay;
+		for (int i = 1; i < attempt && delay < maxRetryDelay; i++) {
+			delay *= 2;
+		}
+
+		delay = Math.min(delay, maxRetryDelay);
+
+		return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Send the retrieve request(s) and wait for the objects to arrive
+	 *
+	 * @return true if the request completed
+	 */
+	private boolean retrieve()
+	{
+		try {
+			handler = null;
+			lastError = null;
+
+			logger.info("Start " + getOperation() + " for request: " + params);
+
+			job.reset();
+
+			CacheManager.setInProgress(params, job);
+
+			inventory = getInventory();
+			Map<String, Set<String>> missing = null;
+			if (inventory != null) {
+				missing = getMissing(inventory);
+				if (missing.isEmpty()) {
+					setCompleted();
+
+					logger.info("All {} objects of request {} are already cached",
+								counter.getCount(), params);
+
+					return true;
+				}
+			}
+
+			List<String> series;
+			if (missing != null && count(missing) < count(inventory)) {
+				handler = retrieveMissing(missing);
+			}
+			else if ((series = getFanOutSeries()) != null) {
+				handler = retrieveSeries(series);
+			}
+			else {
+				handler = sendHedged();
+			}
+
+			if (handler.status == Status.Success) {
+				long expectedCount = handler.completed + handler.warning; // Might be zero
+
+				// Some PACS system return a success status even though
+				// they haven't even started sending.  So we include some logic
+				// to wait for new images to arrive. The timer is reset
+				// each time an object arrives. If the objects arrive on the
+				// same association nothing else is coming, so there is no wait.
+
+				long timeout = isReceivedInline() ? 0 : retrieveTimeout;
+
+				boolean completed = false;
+				int actualCount = counter.getCount();
+				StopWatch timer = new StopWatch();
+				timer.start();
+				while (true) {
+					long lapsed = timer.getTime();
+
+					if (job.isCancelled()) {
+						break;
+					}
+					else if (isReceived()) {
+						completed = true;
+					}
+					else if ((expectedCount > 0 || inventory != null)
+							 && ignoreMissing && lapsed >= timeout) {
+						logger.warn("{} for request {} completed with "
+									+ "missing objects.  Expected: {}, "
+									+ "but only received: {}.",
+									getOperation(),
+									params,
+									expectedCount,
+									actualCount);
+
+						completed = true;
+					}
+					else if (inventory == null && expectedCount < 1
+							 && actualCount > 0 && lapsed >= timeout) {
+						completed = true;
+					}
+					else if (lapsed >= timeout) {
+						lastError = new RuntimeException(getOperation() + " for request "
+														 + params + " timed out");
+
+						logger.warn("{} for request {} timed out.  Received {} objects.  "
+									+ "Expected {} objects", getOperation(), params, actualCount, expectedCount);
+
+						break;
+					}
+
+
+					if (completed) {
+						setCompleted();
+
+
+						logger.info("Completed {} for request: {}. Completed: {}. Warning: {}.",
+									getOperation(),
+									params,
+									handler.completed,
+									handler.warning);
+
+						return true;
+					}
+
+					int lastCount = actualCount;
+					actualCount = counter.awaitChange(lastCount,
+													  timeout - lapsed);
+
+					if (lastCount != actualCount) {
+						timer.reset();
+						timer.start();
+					}
+				}
+			}
+			else {
+				logger.info("{} for request: {} failed. Error: {}. Message: {}. "
+							+ "Completed: {}. Warning: {}. Failed: {}",
+							getOperation(),
+							params,
+							handler.status,
+							handler.error,
+							handler.completed,
+							handler.warning,
+							handler.failed);
+			}
+		}
+		catch (Throwable ex) {
+			logger.warn("Uncaught exception while processing "
+						+ getOperation() + " request for: " + params, ex);
+
+			lastError = ex;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Determine if all objects of the request have arrived. If the request has
+	 * an inventory, every object in it must have been received. Otherwise the
+	 * number of received objects is compared with the counts in the last
+	 * response.
+	 *
+	 * @return true if all objects have arrived
+	 */
+	private boolean isReceived()
+	{
+		if (inventory != null) {
+			return getMissing(inventory).isEmpty();
+		}
+		else if (handler != null) {
+			long expectedCount = handler.completed + handler.warning;
+
+			return expectedCount > 0 && counter.getCount() >= expectedCount;
+		}
+		else {
+			return false;
+		}
+	}
+
+	/**
+	 * Mark the request as completed in the cache
+	 *
+	 * @throws IOException if the cache could not be updated
+	 */
+	private void setCompleted() throws IOException
+	{
+		if (inventory != null || handler == null) {
+			CacheManager.setCompleted(params, counter.getCount(), 0);
+		}
+		else {
+			CacheManager.setCompleted(params, handler.completed, handler.warning);
+		}
+	}
+
+	/**
+	 * Get the objects held by the remote AE for a study or series request
+	 *
+	 * @return the SOP instance UIDs keyed by series UID or null if the
+	 * inventory is disabled or not available
+	 */
+	private Map<String, Set<String>> getInventory()
+	{
+		if (!inventoryEnabled || params.getLevel() == Level.IMAGE) {
+			return null;
+		}
+
+		try {
+			Map<String, Set<String>> result = StudyInventory.get(params, getBackend());
+
+			return result.isEmpty() ? null : result;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to get the inventory of " + params
+						+ ". Retrieving the whole request.", ex);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Get the objects of an inventory that have not arrived yet
+	 *
+	 * @param inventory the SOP instance UIDs keyed by series UID
+	 * @return the missing SOP instance UIDs keyed by series UID. Series
+	 * without missing objects are left out.
+	 */
+	private Map<String, Set<String>> getMissing(Map<String, Set<String>> inventory)
+	{
+		Map<String, Set<String>> missing = new HashMap();
+		for (Map.Entry<String, Set<String>> entry : inventory.entrySet()) {
+			Set<String> uids = counter.getMissing(entry.getValue());
+			if (!uids.isEmpty()) {
+				missing.put(entry.getKey(), uids);
+			}
+		}
+
+		return missing;
+	}
+
+	private static int count(Map<String, Set<String>> uids)
+	{
+		int count = 0;
+		for (Set<String> set : uids.values()) {
+			count += set.size();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Retrieve only the objects that have not arrived. Series that are missing
+	 * entirely are retrieved with a SERIES level request, the others with
+	 * IMAGE level requests listing the missing SOP instance UIDs.
+	 *
+	 * @param missing the missing SOP instance UIDs keyed by series UID
+	 * @return a handler holding the combined results of the requests
+	 * @throws Exception if any of the requests could not be sent
+	 */
+	private RetrieveHandler retrieveMissing(Map<String, Set<String>> missing)
+			throws Exception
+	{
+		List<RetrieveScu> parts = new ArrayList();
+		for (Map.Entry<String, Set<String>> entry : missing.entrySet()) {
+			String seriesUid = entry.getKey();
+			Set<String> uids = entry.getValue();
+
+			if (uids.size() == inventory.get(seriesUid).size()) {
+				parts.add(createPart(new RetrieveParameters(params.getStudyUid(),
+															seriesUid,
+															null,
+															Level.SERIES)));
+				continue;
+			}
+
+			List<String> list = new ArrayList(uids);
+			for (int i = 0; i < list.size(); i += MAX_UIDS_PER_REQUEST) {
+				List<String> chunk = list.subList(i, Math.min(list.size(),
+															  i + MAX_UIDS_PER_REQUEST));
+
+				RetrieveScu scu = createPart(new RetrieveParameters(params.getStudyUid(),
+																	seriesUid,
+																	null,
+																	Level.IMAGE));
+				scu.instanceUids = chunk.toArray(new String[chunk.size()]);
+				parts.add(scu);
+			}
+		}
+
+		logger.info("Retrieving {} missing objects of request {} with {} request(s)",
+					count(missing), params, parts.size());
+
+		return retrieveParts(parts);
+	}
+
+	/**
+	 * Decide whether a study retrieve should be split into per-series
+	 * retrieves. Only large studies with more than one series are split.
+	 *
+	 * @return the series UIDs to retrieve or null if the study should be
+	 * retrieved with a single request
+	 */
+	private List<String> getFanOutSeries()
+	{
+		if (fanOutMinInstances < 1 || params.getLevel() != Level.STUDY) {
+			return null;
+		}
+
+		try (StudyQuery query = new StudyQuery(getBackend())) {
+			int count = query.countInstances(params.getStudyUid());
+			if (count < fanOutMinInstances) {
+				return null;
+			}
+
+			List<String> series = query.findSeries(params.getStudyUid());
+			if (series.size() < 2) {
+				return null;
+			}
+
+			logger.info("Splitting {} for study {} with {} objects into {} series requests",
+						getOperation(), params, count, series.size());
+
+			return series;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to query study " + params
+						+ ". Retrieving it with a single " + getOperation() + ".", ex);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Retrieve the series of a study in parallel
+	 *
+	 * @param seriesUids the series to retrieve
+	 * @return a handler holding the combined results of the series requests
+	 * @throws Exception if any of the series requests could not be sent
+	 */
+	private RetrieveHandler retrieveSeries(List<String> seriesUids) throws Exception
+	{
+		List<RetrieveScu> parts = new ArrayList();
+		for (String seriesUid : seriesUids) {
+			RetrieveParameters seriesParams = new RetrieveParameters(params.getStudyUid(),
+																	 seriesUid,
+																	 null,
+																	 Level.SERIES);
+			parts.add(createPart(seriesParams));
+		}
+
+		return retrieveParts(parts);
+	}
+
+	/**
+	 * Send the requests for parts of this request in parallel. The number of
+	 * concurrent requests to the remote AE is bounded. A part is only handed
+	 * to a thread once it has a permit, so parts waiting for a permit do not
+	 * hold threads.
+	 *
+	 * @param parts the SCUs of the parts
+	 * @return a handler holding the combined results of the requests
+	 * @throws Exception if any of the requests could not be sent
+	 */
+	private RetrieveHandler retrieveParts(List<RetrieveScu> parts) throws Exception
+	{
+		Semaphore permits = permitsByAe.computeIfAbsent(getBackend().getName(),
+														k -> new Semaphore(maxConcurrentMoves));
+
+		Exception error = null;
+		List<Future<RetrieveHandler>> futures = new ArrayList();
+		for (RetrieveScu scu : parts) {
+			scu.job = job;
+			scu.setBackend(getBackend());
+
+			try {
+				permits.acquire();
+			}
+			catch (InterruptedException ex) {
+				// The parts already sent are still collected below
+				error = ex;
+
+				break;
+			}
+
+			try {
+				futures.add(ExecutorServiceFactory.getService().submit(() -> {
+					try {
+						return timedSend(scu);
+					}
+					finally {
+						permits.release();
+					}
+				}));
+			}
+			catch (RuntimeException ex) {
+				permits.release();
+				error = ex;
+
+				break;
+			}
+		}
+
+		RetrieveHandler total = new RetrieveHandler(0, null);
+		total.status = Status.Success;
+		total.completed = 0;
+		total.warning = 0;
+		total.failed = 0;
+		total.remaining = 0;
+
+		for (Future<RetrieveHandler> future : futures) {
+			try {
+				total.add(future.get());
+			}
+			catch (ExecutionException ex) {
+				if (error == null) {
+					error = ex.getCause() instanceof Exception
+							? (Exception) ex.getCause() : ex;
+				}
+			}
+		}
+
+		if (error != null) {
+			throw error;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Send a retrieve request and record its duration and outcome with the
+	 * backend of the SCU
+	 *
+	 * @param scu the SCU
+	 * @return the handler holding the final response
+	 * @throws Exception if the request could not be sent
+	 */
+	private static RetrieveHandler timedSend(RetrieveScu scu) throws Exception
+	{
+		Backend backend = scu.getBackend();
+		boolean success = false;
+
+		backend.begin();
+		long start = System.currentTimeMillis();
+		try {
+			RetrieveHandler rsp = scu.send();
+			success = rsp.status == Status.Success;
+
+			return rsp;
+		}
+		finally {
+			backend.end(System.currentTimeMillis() - start, success);
+		}
+	}
+
+	/**
+	 * Send the retrieve request. If hedging is enabled and the backend has not
+	 * answered within the 95th percentile of its recent requests, the same
+	 * request is also sent to another healthy backend and the first
+	 * successful response is used. The slower request is cancelled and its
+	 * association aborted. Duplicate objects are ignored by the arrival
+	 * counter.
+	 *
+	 * @return the handler holding the final response
+	 * @throws Exception if the request could not be sent
+	 */
+	private RetrieveHandler sendHedged() throws Exception
+	{
+		Backend primary = getBackend();
+		long p95 = primary.getP95();
+
+		Backend alternate = null;
+		if (hedgeRetrieves && p95 > 0) {
+			alternate = BackendGroup.getWado().select(Collections.singleton(primary));
+		}
+
+		if (alternate == null || !alternate.isHealthy()) {
+			return timedSend(this);
+		}
+
+		// Sent from separate SCUs so that this one is free for a retry while
+		// the slower request finishes
+		RetrieveScu first = createPart(params);
+		first.job = job;
+		first.setBackend(primary);
+
+		CompletionService<RetrieveHandler> service
+				= new ExecutorCompletionService(ExecutorServiceFactory.getService());
+		Map<Future<RetrieveHandler>, RetrieveScu> parts = new HashMap();
+		parts.put(service.submit(() -> timedSend(first)), first);
+
+		Runnable cancelHedge = null;
+		try {
+			Future<RetrieveHandler> done = service.poll(p95, TimeUnit.MILLISECONDS);
+			if (done == null) {
+				logger.info("Hedging {} for request {} on {}. {} has not answered within {} ms.",
+							getOperation(), params, alternate, primary, p95);
+
+				// Progress is only reported for the first request
+				RetrieveScu hedge = createPart(params);
+				hedge.setBackend(alternate);
+
+				// The hedge has its own job, so it is stopped with this one
+				cancelHedge = hedge::abort;
+				job.addCancelHandler(cancelHedge);
+
+				parts.put(service.submit(() -> timedSend(hedge)), hedge);
+			}
+
+			RetrieveHandler failed = null;
+			Exception error = null;
+			for (int pending = parts.size(); pending > 0; pending--) {
+				Future<RetrieveHandler> future = done != null ? done : service.take();
+				done = null;
+
+				try {
+					RetrieveHandler rsp = future.get();
+					if (rsp.status == Status.Success) {
+						return rsp;
+					}
+
+					failed = rsp;
+				}
+				catch (ExecutionException ex) {
+					error = ex.getCause() instanceof Exception
+							? (Exception) ex.getCause() : ex;
+				}
+			}
+
+			if (failed != null) {
+				return failed;
+			}
+
+			throw error;
+		}
+		finally {
+			if (cancelHedge != null) {
+				job.removeCancelHandler(cancelHedge);
+			}
+
+			for (Map.Entry<Future<RetrieveHandler>, RetrieveScu> entry : parts.entrySet()) {
+				if (!entry.getKey().isDone()) {
+					logger.info("Cancelling {} for request {} on {}",
+								getOperation(), params, entry.getValue().getBackend());
+
+					entry.getValue().abort();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the sub-operation counts from the responses to a C-MOVE or
+	 * C-GET request
+	 */
+	protected static class RetrieveHandler extends DimseRSPHandler
+	{
+		private int remaining = -1;
+
+		private int completed = -1;
+
+		private int failed = -1;
+
+		private int warning = -1;
+
+		private int status = -1;
+
+		private String error = "";
+
+		private final RetrieveJob job;
+
+		private RetrieveHandler(int msgId, RetrieveJob job)
+		{
+			super(msgId);
+
+			this.job = job;
+		}
+
+		/**
+		 * Add the results of another request to this one. The first failure
+		 * status is kept.
+		 */
+		private void add(RetrieveHandler other)
+		{
+			completed += Math.max(0, other.completed);
+			warning += Math.max(0, other.warning);
+			failed += Math.max(0, other.failed);
+			remaining += Math.max(0, other.remaining);
+
+			if (status == Status.Success && other.status != Status.Success) {
+				status = other.status;
+				error = other.error;
+			}
+		}
+
+		@Override
+		public void onDimseRSP(Association as, Attributes cmd, Attributes data)
+		{
+			super.onDimseRSP(as, cmd, data);
+
+			status = cmd.getInt(Tag.Status, -1);
+			if (Status.isPending(status)) {
+				completed = cmd.getInt(Tag.NumberOfCompletedSuboperations, -1);
+				remaining = cmd.getInt(Tag.NumberOfRemainingSuboperations, -1);
+				warning = cmd.getInt(Tag.NumberOfWarningSuboperations, -1);
+				failed = cmd.getInt(Tag.NumberOfFailedSuboperations, -1);
+			}
+			else {
+				completed = cmd.getInt(Tag.NumberOfCompletedSuboperations, -1);
+				remaining = 0;
+				warning = cmd.getInt(Tag.NumberOfWarningSuboperations, -1);
+				failed = cmd.getInt(Tag.NumberOfFailedSuboperations, -1);
+
+				error = cmd.getString(Tag.ErrorComment, "");
+			}
+
+			if (job != null) {
+				job.update(this, remaining, completed, failed, warning);
+			}
+		}
+
+	}
+}
@@ -53,6 +53,8 @@ public class StoreScp
 			GeneralSecurityException
 	{
 		if (device == null) {
+			CacheManager.init();
+
 			int port = Environment.getPropertyAsInt(SCP_LOCAL_PORT);
 			Connection con = new Connection();
 			con.setPort(port);
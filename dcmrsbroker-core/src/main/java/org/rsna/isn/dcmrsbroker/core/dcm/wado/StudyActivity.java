@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the size of a cached study and when it was last written and last
+ * accessed
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class StudyActivity
+{
+	private final String studyUid;
+
+	StudyActivity(String studyUid, long created)
+	{
+		this.studyUid = studyUid;
+		this.lastWrite = created;
+		this.lastAccess = created;
+	}
+
+	/**
+	 * Get the study UID
+	 *
+	 * @return the study UID
+	 */
+	String getStudyUid()
+	{
+		return studyUid;
+	}
+
+	private volatile long lastWrite;
+
+	/**
+	 * Get the time an object was last written to the study
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	long getLastWrite()
+	{
+		return lastWrite;
+	}
+
+	void setLastWrite(long lastWrite)
+	{
+		this.lastWrite = lastWrite;
+	}
+
+	private volatile long lastAccess;
+
+	/**
+	 * Get the time the study was last accessed by a client
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	long getLastAccess()
+	{
+		return lastAccess;
+	}
+
+	void setLastAccess(long lastAccess)
+	{
+		this.lastAccess = lastAccess;
+	}
+
+	private final AtomicLong accessCount = new AtomicLong();
+
+	/**
+	 * Get the number of times the study was accessed by a client
+	 *
+	 * @return the number of accesses
+	 */
+	long getAccessCount()
+	{
+		return accessCount.get();
+	}
+
+	void incrementAccessCount()
+	{
+		accessCount.incrementAndGet();
+	}
+
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Get the number of bytes the study occupies in the cache
+	 *
+	 * @return the size in bytes
+	 */
+	long getSize()
+	{
+		return size.get();
+	}
+
+	void addSize(long delta)
+	{
+		size.addAndGet(delta);
+	}
+
+	/**
+	 * Get the time the study was last written or accessed
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	long getLastUsed()
+	{
+		return Math.max(lastWrite, lastAccess);
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.Backend;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+
+/**
+ * Per study inventory of the SOP instances held by the remote AE.
+ * <p>
+ * The inventory is built from IMAGE level C-FIND queries and from the objects
+ * received by the C-STORE handler. Retrieves use it to request only the
+ * objects that are not already cached and to decide completion by checking
+ * that every listed object has arrived. Only series that were queried are
+ * used, since received objects alone do not tell whether a series is
+ * complete.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class StudyInventory
+{
+	private static final long ttl = Environment.getPropertyAsInt(WADO_INVENTORY_TTL_IN_SECS) * DateUtils.MILLIS_PER_SECOND;
+
+	private static final long CLEANUP_INTERVAL_IN_SECS = 60;
+
+	private static final ConcurrentHashMap<String, StudyInventory> inventories
+			= new ConcurrentHashMap();
+
+	private final long created = System.currentTimeMillis();
+
+	private final ConcurrentHashMap<String, Set<String>> series
+			= new ConcurrentHashMap();
+
+	private final Set<String> queried = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean complete;
+
+	static {
+		ExecutorServiceFactory.getScheduledService()
+				.scheduleWithFixedDelay(StudyInventory::cleanup,
+										CLEANUP_INTERVAL_IN_SECS,
+										CLEANUP_INTERVAL_IN_SECS,
+										TimeUnit.SECONDS);
+	}
+
+	private StudyInventory()
+	{
+	}
+
+	/**
+	 * Get the SOP instances covered by a request, querying the remote AE for
+	 * the parts of the study that are not in the inventory yet
+	 *
+	 * @param params the request parameters (cannot be null)
+	 * @param backend the backend servicing the retrieve (cannot be null)
+	 * @return the SOP instance UIDs keyed by series UID
+	 * @throws Exception if the remote AE could not be queried
+	 */
+	static Map<String, Set<String>> get(RetrieveParameters params,
+										Backend backend) throws Exception
+	{
+		String studyUid = params.getStudyUid();
+		String seriesUid = params.getSeriesUid();
+
+		StudyInventory inventory = inventories.compute(studyUid, (k, v) -> {
+			return v != null && !v.isExpired() ? v : new StudyInventory();
+		});
+
+		if (params.getLevel() == Level.STUDY && !inventory.complete) {
+			try (StudyQuery query = new StudyQuery(backend)) {
+				List<String> seriesUids = query.findSeries(studyUid);
+				for (String uid : seriesUids) {
+					if (!inventory.queried.contains(uid)) {
+						inventory.query(query, studyUid, uid);
+					}
+				}
+			}
+
+			inventory.complete = true;
+		}
+		else if (params.getLevel() != Level.STUDY
+				 && !inventory.queried.contains(seriesUid)) {
+			try (StudyQuery query = new StudyQuery(backend)) {
+				inventory.query(query, studyUid, seriesUid);
+			}
+		}
+
+		Map<String, Set<String>> result = new HashMap();
+		for (String uid : inventory.queried) {
+			if (params.getLevel() == Level.STUDY || uid.equals(seriesUid)) {
+				result.put(uid, inventory.series.get(uid));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Record an object received from the remote AE. Only studies that have an
+	 * inventory are updated.
+	 *
+	 * @param studyUid the study UID of the object
+	 * @param seriesUid the series UID of the object
+	 * @param instanceUid the SOP instance UID of the object
+	 */
+	static void add(String studyUid, String seriesUid, String instanceUid)
+	{
+		if (StringUtils.isAnyBlank(studyUid, seriesUid, instanceUid)) {
+			return;
+		}
+
+		StudyInventory inventory = inventories.get(studyUid);
+		if (inventory != null) {
+			inventory.series.computeIfAbsent(seriesUid, k -> ConcurrentHashMap.newKeySet())
+					.add(instanceUid);
+		}
+	}
+
+	private void query(StudyQuery query, String studyUid, String seriesUid)
+			throws Exception
+	{
+		Set<String> instances = ConcurrentHashMap.newKeySet();
+		instances.addAll(query.findInstances(studyUid, seriesUid));
+
+		series.merge(seriesUid, instances, (a, b) -> {
+			a.addAll(b);
+
+			return a;
+		});
+		queried.add(seriesUid);
+	}
+
+	private boolean isExpired()
+	{
+		return System.currentTimeMillis() - created >= ttl;
+	}
+
+	private static void cleanup()
+	{
+		inventories.values().removeIf(StudyInventory::isExpired);
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.rsna.isn.dcmrsbroker.core.dcm.Backend;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.dcm.Scu;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+
+/**
+ * C-FIND SCU used to plan retrieves. Queries the backend that services the
+ * retrieve and reports the outcome to its circuit breaker.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class StudyQuery extends Scu implements AutoCloseable
+{
+	StudyQuery(Backend backend)
+	{
+		super(Environment.getProperty(WADO_LOCAL_AE),
+			  backend,
+			  UID.StudyRootQueryRetrieveInformationModelFIND);
+	}
+
+	/**
+	 * Get the number of objects in a study
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @return the number of objects or -1 if the remote AE did not return it
+	 * @throws Exception if the query failed
+	 */
+	int countInstances(String studyUid) throws Exception
+	{
+		Attributes keys = new Attributes();
+		keys.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		keys.setNull(Tag.NumberOfStudyRelatedInstances, VR.IS);
+
+		List<Attributes> results = find(Level.STUDY, keys);
+		if (results.isEmpty()) {
+			return -1;
+		}
+
+		return results.get(0).getInt(Tag.NumberOfStudyRelatedInstances, -1);
+	}
+
+	/**
+	 * Get the series UIDs of a study
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @return the series UIDs
+	 * @throws Exception if the query failed
+	 */
+	List<String> findSeries(String studyUid) throws Exception
+	{
+		Attributes keys = new Attributes();
+		keys.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		keys.setNull(Tag.SeriesInstanceUID, VR.UI);
+
+		List<String> series = new ArrayList();
+		for (Attributes result : find(Level.SERIES, keys)) {
+			String seriesUid = result.getString(Tag.SeriesInstanceUID);
+			if (seriesUid != null) {
+				series.add(seriesUid);
+			}
+		}
+
+		return series;
+	}
+
+	/**
+	 * Get the SOP instance UIDs of a series
+	 *
+	 * @param studyUid the study UID (cannot be null)
+	 * @param seriesUid the series UID (cannot be null)
+	 * @return the SOP instance UIDs
+	 * @throws Exception if the query failed
+	 */
+	Set<String> findInstances(String studyUid, String seriesUid) throws Exception
+	{
+		Attributes keys = new Attributes();
+		keys.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		keys.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+		keys.setNull(Tag.SOPInstanceUID, VR.UI);
+
+		Set<String> instances = new HashSet();
+		for (Attributes result : find(Level.IMAGE, keys)) {
+			String instanceUid = result.getString(Tag.SOPInstanceUID);
+			if (instanceUid != null) {
+				instances.add(instanceUid);
+			}
+		}
+
+		return instances;
+	}
+
+	private List<Attributes> find(Level level, Attributes keys) throws Exception
+	{
+		keys.setString(Tag.QueryRetrieveLevel, VR.CS, level.name());
+
+		// The remote AE is reachable if it sent a final response
+		boolean answered = false;
+		try {
+			Association assoc = connect();
+			List<Attributes> results = new ArrayList();
+
+			DimseRSP rsp = assoc.cfind(getSopClass(), 0, keys, null, 0);
+			while (rsp.next()) {
+				int status = rsp.getCommand().getInt(Tag.Status, -1);
+				if (Status.isPending(status)) {
+					results.add(rsp.getDataset());
+				}
+				else {
+					answered = true;
+
+					if (status != Status.Success) {
+						throw new IOException("C-FIND failed with status: "
+											  + Integer.toHexString(status));
+					}
+				}
+			}
+
+			getBackend().getBreaker().recordSuccess();
+
+			return results;
+		}
+		catch (Exception ex) {
+			if (answered) {
+				getBackend().getBreaker().recordSuccess();
+			}
+			else {
+				getBackend().getBreaker().recordFailure();
+			}
+
+			discard();
+
+			throw ex;
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		releaseGracefully();
+	}
+
+}
@@ -18,6 +18,11 @@ package org.rsna.isn.dcmrsbroker.core.spark;
 import org.rsna.isn.dcmrsbroker.core.dcm.Level;
 import org.rsna.isn.dcmrsbroker.core.dcm.wado.StoreScp;
 import org.rsna.isn.dcmrsbroker.core.spark.qido.QidoSearch;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.JobEventsRoute;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.JobRoute;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.PrefetchBatchRoute;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.PrefetchRoute;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.SchedulerRoute;
 import org.rsna.isn.dcmrsbroker.core.spark.wado.WadoRoute;
 import org.rsna.isn.dcmrsbroker.core.util.Environment;
 import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
@@ -60,6 +65,11 @@ public class Router implements SparkApplication
 		get(wadoBase + "/studies/:studyUid", new WadoRoute(Level.STUDY));
 		get(wadoBase + "/studies/:studyUid/series/:seriesUid", new WadoRoute(Level.SERIES));
 		get(wadoBase + "/studies/:studyUid/series/:seriesUid/instances/:instanceUid", new WadoRoute(Level.IMAGE));
+		get(wadoBase + "/jobs/:jobId", new JobRoute());
+		get(wadoBase + "/jobs/:jobId/events", new JobEventsRoute());
+		get(wadoBase + "/scheduler", new SchedulerRoute());
+		post(wadoBase + "/prefetch", new PrefetchRoute());
+		get(wadoBase + "/prefetch/:batchId", new PrefetchBatchRoute());
 	}
 
 	@Override
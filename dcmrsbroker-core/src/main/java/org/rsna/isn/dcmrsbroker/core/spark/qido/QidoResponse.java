@@ -16,6 +16,8 @@
 package org.rsna.isn.dcmrsbroker.core.spark.qido;
 
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
@@ -24,12 +26,20 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.io.SAXWriter;
 import org.dcm4che3.json.JSONWriter;
 import static org.dcm4che3.ws.rs.MediaTypes.APPLICATION_DICOM_XML;
 import org.rsna.isn.dcmrsbroker.core.dcm.Level;
 import org.rsna.isn.dcmrsbroker.core.dcm.qido.FindScu;
+import org.rsna.isn.dcmrsbroker.core.dcm.qido.QueryCache;
+import org.rsna.isn.dcmrsbroker.core.dcm.qido.QueryCursor;
+import org.rsna.isn.dcmrsbroker.core.dcm.qido.QueryStream;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.MetadataIndex;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.PrefetchPolicy;
 import org.rsna.isn.dcmrsbroker.core.io.MultipartRelatedOutputStream;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
@@ -45,6 +55,18 @@ import spark.Response;
 public class QidoResponse
 {
 	private static final Logger logger = LoggerFactory.getLogger(QidoResponse.class);
+
+	private static final boolean streaming = Environment.getPropertyAsBoolean(QIDO_STREAMING);
+
+	/**
+	 * Attributes used by the prefetch policy (in ascending tag order)
+	 */
+	private static final int PREFETCH_TAGS[] = {
+		Tag.StudyDate,
+		Tag.StudyTime,
+		Tag.PatientID,
+		Tag.StudyInstanceUID
+	};
 		
 	private final Level level;
 	
@@ -79,14 +101,94 @@ public class QidoResponse
 	{
 		QueryParameters params = new QueryParameters(this.request, this.level);
 		
+		List<Attributes> local = MetadataIndex.query(params);
+		if (local != null) {
+			return send(params, local);
+		}
+
 		FindScu cfind = new FindScu();
-		List<Attributes> results = cfind.doQuery(params);
-		
+		if (QueryCursor.isEnabled()
+			&& (params.getOffset() > 0 || params.getLimit() > 0
+				|| params.getCursor() != null)) {
+			QueryCursor.Page page = QueryCursor.getPage(params, cfind);
+			response.header("X-Cursor", page.getCursor());
+			if (page.isTruncated()) {
+				// http://dicom.nema.org/medical/dicom/2016b/output/chtml/part18/sect_6.7.html
+				response.header("Warning", "299 dcmrs-broker: The number of results "
+										   + "exceeded the maximum supported by the server");
+			}
+
+			return send(params, page.getResults());
+		}
+
+		if (streaming && !QueryCache.isEnabled()) {
+			try (QueryStream stream = cfind.openQuery(params)) {
+				return send(params, stream);
+			}
+		}
+
+		List<Attributes> results = QueryCache.isEnabled()
+								   ? QueryCache.get(params, cfind)
+								   : cfind.doQuery(params);
+
+		return send(params, results);
+	}
+
+	private Object send(QueryParameters params, List<Attributes> results) throws Exception
+	{
 		if(results.isEmpty()) {
 			response.status(204);
 			return "";
 		}
 		
+		if (level == Level.STUDY) {
+			PrefetchPolicy.onStudyQuery(params.getParameters(), results);
+		}
+
+		Iterator<Attributes> it = results.iterator();
+		write(() -> it.hasNext() ? it.next() : null);
+
+		return null;
+	}
+
+	/**
+	 * Write the matches of a running query as they arrive. The response is
+	 * only started once the first match (or the end of the query) is known,
+	 * so an empty result is still answered with a 204.
+	 */
+	private Object send(QueryParameters params, QueryStream stream) throws Exception
+	{
+		Attributes first = stream.next();
+		if (first == null) {
+			response.status(204);
+			return "";
+		}
+
+		// Only the attributes the prefetch policy needs are kept
+		List<Attributes> studies = new ArrayList();
+		boolean prefetch = level == Level.STUDY && PrefetchPolicy.isEnabled();
+
+		Attributes[] pending = {first};
+		write(() -> {
+			Attributes match = pending[0] != null ? pending[0] : stream.next();
+			pending[0] = null;
+
+			if (match != null && prefetch) {
+				studies.add(new Attributes(match, PREFETCH_TAGS));
+			}
+
+			return match;
+		});
+
+		if (prefetch) {
+			PrefetchPolicy.onStudyQuery(params.getParameters(), studies);
+		}
+
+		return null;
+	}
+
+	private void write(Matches matches) throws Exception
+	{
 		if (this.request.headers("Accept").equals("application/json")) {
 			
 			this.response.header("Content-Type", "application/dicom+json");
@@ -97,7 +199,8 @@ public class QidoResponse
 
 			JSONWriter writer = new JSONWriter(gen);
 			
-			for(Attributes dcm : results) {
+			Attributes dcm;
+			while ((dcm = matches.next()) != null) {
 					writer.write(dcm);
 					gen.flush();
 			}
@@ -114,7 +217,8 @@ public class QidoResponse
 			
 			response.type(out.getContentType());
 			
-			for(Attributes dcm : results) {
+			Attributes dcm;
+			while ((dcm = matches.next()) != null) {
 				MultipartRelatedOutputStream.Part part = 
 								new MultipartRelatedOutputStream.Part(APPLICATION_DICOM_XML);
 
@@ -125,10 +229,25 @@ public class QidoResponse
 
 				out.addPart(part);
 				writer.write(dcm);	
+				out.flush();
 			}
 			
 			out.finish();
 		}
-		return null;	
 	}
+
+	/**
+	 * Source of the matches to write
+	 */
+	private interface Matches
+	{
+		/**
+		 * Get the next match
+		 *
+		 * @return the match or null if there are no more matches
+		 */
+		Attributes next() throws Exception;
+
+	}
+
 }
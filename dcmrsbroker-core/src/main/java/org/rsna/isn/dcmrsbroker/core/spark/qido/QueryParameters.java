@@ -69,6 +69,9 @@ public class QueryParameters
 			else if ("offset".equals(key)) {
 				offset = NumberUtils.toInt(rqst.queryParams("offset"));
 			}
+			else if ("cursor".equals(key)) {
+				cursor = rqst.queryParams("cursor");
+			}
 			else if ("includefield".equals(key)) {
 				for (String field : rqst.queryParamsValues(key)) {
 					if ("all".equals(field)) {
@@ -130,6 +133,18 @@ public class QueryParameters
 		return offset;
 	}
 
+	private String cursor;
+
+	/**
+	 * Get the cursor of the snapshot to page through
+	 *
+	 * @return the cursor or null if none was given
+	 */
+	public String getCursor()
+	{
+		return cursor;
+	}
+
 	private Attributes included = new Attributes(0);
 
 	public Attributes getIncludedAttributes()
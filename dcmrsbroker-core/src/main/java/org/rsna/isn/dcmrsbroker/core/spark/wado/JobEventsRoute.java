@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark.wado;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.time.DateUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Route that streams the progress of a retrieve as Server-Sent Events. A
+ * "progress" event is sent whenever the state of the retrieve changes and a
+ * "completed" or "failed" event ends the stream.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class JobEventsRoute implements Route
+{
+	private static final Logger logger = LoggerFactory.getLogger(JobEventsRoute.class);
+
+	/**
+	 * Changes within this interval are sent as a single event
+	 */
+	private static final long EVENT_INTERVAL = DateUtils.MILLIS_PER_SECOND;
+
+	private static final long KEEP_ALIVE_INTERVAL = 15 * DateUtils.MILLIS_PER_SECOND;
+
+	@Override
+	public Object handle(Request request, Response response) throws Exception
+	{
+		RetrieveJob job = RetrieveJob.get(request.params("jobId"));
+		if (job == null) {
+			response.status(404);
+
+			return "";
+		}
+
+		HttpServletResponse raw = response.raw();
+		raw.setContentType("text/event-stream");
+		raw.setCharacterEncoding("UTF-8");
+		raw.setHeader("Cache-Control", "no-cache");
+
+		job.addWaiter();
+		try {
+			Writer out = new OutputStreamWriter(raw.getOutputStream(),
+												StandardCharsets.UTF_8);
+			raw.flushBuffer();
+
+			long version = -1;
+			while (true) {
+				long current = job.awaitChange(version, KEEP_ALIVE_INTERVAL);
+				if (current == version) {
+					out.write(": keep-alive\n\n");
+					out.flush();
+
+					continue;
+				}
+
+				version = current;
+
+				CacheEntry result = job.getResult();
+				String event;
+				if (result == null) {
+					event = "progress";
+				}
+				else if (result.getStatus() == CacheEntry.Status.COMPLETED) {
+					event = "completed";
+				}
+				else {
+					event = "failed";
+				}
+
+				out.write("id: " + version + "\n");
+				out.write("event: " + event + "\n");
+				out.write("data: " + JobRoute.toJson(job) + "\n\n");
+				out.flush();
+
+				if (result != null) {
+					break;
+				}
+
+				Thread.sleep(EVENT_INTERVAL);
+			}
+		}
+		catch (IOException ex) {
+			logger.debug("Client stopped listening to job " + job.getId(), ex);
+		}
+		finally {
+			job.removeWaiter();
+		}
+
+		return "";
+	}
+
+}
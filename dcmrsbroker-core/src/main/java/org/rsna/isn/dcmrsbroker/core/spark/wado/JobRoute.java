@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark.wado;
+
+import java.io.StringWriter;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveJob;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Route that returns the progress of a retrieve as JSON
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class JobRoute implements Route
+{
+	@Override
+	public Object handle(Request request, Response response) throws Exception
+	{
+		RetrieveJob job = RetrieveJob.get(request.params("jobId"));
+		if (job == null) {
+			response.status(404);
+
+			return "";
+		}
+
+		job.addInterest(System.currentTimeMillis());
+
+		response.type("application/json");
+		response.header("Cache-Control", "no-cache");
+
+		return toJson(job);
+	}
+
+	/**
+	 * Serialize the state of a job
+	 *
+	 * @param job the job (cannot be null)
+	 * @return the JSON
+	 */
+	static String toJson(RetrieveJob job)
+	{
+		RetrieveParameters params = job.getParams();
+		CacheEntry result = job.getResult();
+
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = Json.createGenerator(out)) {
+			gen.writeStartObject();
+			gen.write("id", job.getId());
+			gen.write("studyUid", params.getStudyUid());
+			if (StringUtils.isNotBlank(params.getSeriesUid())) {
+				gen.write("seriesUid", params.getSeriesUid());
+			}
+			if (StringUtils.isNotBlank(params.getInstanceUid())) {
+				gen.write("instanceUid", params.getInstanceUid());
+			}
+			gen.write("started", format(job.getStarted()));
+			gen.write("priority", job.getPriority().name());
+
+			if (result == null) {
+				gen.write("status", CacheEntry.Status.IN_PROGRESS.name());
+				gen.write("remaining", job.getRemaining());
+				gen.write("completed", job.getCompleted());
+				gen.write("failed", job.getFailed());
+				gen.write("warning", job.getWarning());
+				gen.write("received", job.getReceived());
+
+				long eta = job.getEstimatedCompletion();
+				if (eta >= 0) {
+					gen.write("estimatedCompletion", format(eta));
+				}
+			}
+			else {
+				gen.write("status", result.getStatus().name());
+				gen.write("completed", result.getCompleted());
+				gen.write("failed", result.getFailed());
+				gen.write("warning", result.getWarning());
+				if (result.getError() != null) {
+					gen.write("error", result.getError());
+				}
+			}
+
+			gen.writeEnd();
+		}
+
+		return out.toString();
+	}
+
+	private static String format(long time)
+	{
+		return DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(time);
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark.wado;
+
+import java.io.StringWriter;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.PrefetchBatch;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Route that returns the progress of a prefetch batch as JSON
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class PrefetchBatchRoute implements Route
+{
+	@Override
+	public Object handle(Request request, Response response) throws Exception
+	{
+		PrefetchBatch batch = PrefetchBatch.get(request.params("batchId"));
+		if (batch == null) {
+			response.status(404);
+
+			return "";
+		}
+
+		response.type("application/json");
+		response.header("Cache-Control", "no-cache");
+
+		return toJson(batch);
+	}
+
+	/**
+	 * Serialize the state of a batch
+	 *
+	 * @param batch the batch (cannot be null)
+	 * @return the JSON
+	 */
+	static String toJson(PrefetchBatch batch)
+	{
+		PrefetchBatch.Progress progress = batch.getProgress();
+
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = Json.createGenerator(out)) {
+			gen.writeStartObject();
+			gen.write("id", batch.getId());
+			gen.write("created", format(batch.getCreated()));
+			gen.write("priority", batch.getPriority().name());
+			if (batch.getDeadline() > 0) {
+				gen.write("deadline", format(batch.getDeadline()));
+			}
+			gen.write("status", progress.isDone() ? "DONE" : "IN_PROGRESS");
+
+			gen.write("items", batch.getSize());
+			gen.write("alreadyCached", batch.getCached());
+			gen.write("alreadyRunning", batch.getAttached());
+			gen.write("started", batch.getStarted());
+			gen.write("rejected", batch.getRejected());
+
+			gen.write("completed", progress.getCompleted());
+			gen.write("failed", progress.getFailed());
+			gen.write("inProgress", progress.getInProgress());
+			gen.write("dropped", progress.getDropped());
+			gen.writeEnd();
+		}
+
+		return out.toString();
+	}
+
+	private static String format(long time)
+	{
+		return DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(time);
+	}
+
+}
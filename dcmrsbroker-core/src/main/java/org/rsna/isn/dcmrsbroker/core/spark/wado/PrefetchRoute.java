@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark.wado;
+
+import java.io.StringReader;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import org.apache.commons.lang3.StringUtils;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.PrefetchBatch;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrievePriority;
+import org.rsna.isn.dcmrsbroker.core.util.Environment;
+import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Route that accepts a batch of studies, series or instances to retrieve
+ * into the cache. The body is a JSON object:
+ * <pre>
+ * {
+ *   "priority": "BACKGROUND",
+ *   "deadline": "2017-10-18T07:00:00-05:00",
+ *   "items": [
+ *     { "studyUid": "1.2.3" },
+ *     { "studyUid": "1.2.3", "seriesUid": "1.2.3.4" },
+ *     { "studyUid": "1.2.3", "seriesUid": "1.2.3.4", "instanceUid": "1.2.3.4.5" }
+ *   ]
+ * }
+ * </pre> The priority (PREFETCH or BACKGROUND, default BACKGROUND) and the
+ * deadline are optional.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class PrefetchRoute implements Route
+{
+	private static final int maxBatchSize = Environment.getPropertyAsInt(WADO_PREFETCH_MAX_BATCH_SIZE);
+
+	private static final String wadoBase = Environment.getProperty(WADO_URL_BASE);
+
+	@Override
+	public Object handle(Request request, Response response) throws Exception
+	{
+		RetrievePriority priority;
+		long deadline = 0;
+		List<RetrieveParameters> items = new ArrayList();
+		try (JsonReader reader = Json.createReader(new StringReader(request.body()))) {
+			JsonObject body = reader.readObject();
+
+			priority = RetrievePriority.valueOf(body.getString("priority",
+															   RetrievePriority.BACKGROUND.name())
+					.toUpperCase());
+			if (priority == RetrievePriority.INTERACTIVE) {
+				throw new IllegalArgumentException("Prefetches cannot be interactive");
+			}
+
+			String value = body.getString("deadline", null);
+			if (StringUtils.isNotBlank(value)) {
+				deadline = OffsetDateTime.parse(value).toInstant().toEpochMilli();
+			}
+
+			for (JsonValue item : body.getJsonArray("items")) {
+				items.add(toParameters((JsonObject) item));
+			}
+		}
+		catch (JsonException | ClassCastException | NullPointerException
+			   | DateTimeParseException | IllegalArgumentException ex) {
+			response.status(400);
+			response.type("text/plain; charset=UTF-8");
+
+			return "Invalid prefetch request: " + ex.getMessage();
+		}
+
+		if (items.isEmpty() || items.size() > maxBatchSize) {
+			response.status(400);
+			response.type("text/plain; charset=UTF-8");
+
+			return "A prefetch request must have between 1 and "
+				   + maxBatchSize + " items";
+		}
+
+		PrefetchBatch batch = PrefetchBatch.submit(items, priority, deadline);
+
+		response.status(202);
+		response.header("Location", wadoBase + "/prefetch/" + batch.getId());
+		response.type("application/json");
+
+		return PrefetchBatchRoute.toJson(batch);
+	}
+
+	private static RetrieveParameters toParameters(JsonObject item)
+	{
+		String studyUid = item.getString("studyUid");
+		String seriesUid = item.getString("seriesUid", null);
+		String instanceUid = item.getString("instanceUid", null);
+
+		Level level;
+		if (StringUtils.isNotBlank(instanceUid)) {
+			level = Level.IMAGE;
+		}
+		else if (StringUtils.isNotBlank(seriesUid)) {
+			level = Level.SERIES;
+		}
+		else {
+			level = Level.STUDY;
+		}
+
+		return new RetrieveParameters(studyUid, seriesUid, instanceUid, level);
+	}
+
+}
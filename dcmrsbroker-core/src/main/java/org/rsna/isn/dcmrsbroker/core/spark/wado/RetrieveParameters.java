@@ -17,6 +17,7 @@ package org.rsna.isn.dcmrsbroker.core.spark.wado;
 
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
 import org.rsna.isn.dcmrsbroker.core.dcm.Level;
 import static org.rsna.isn.dcmrsbroker.core.dcm.Level.*;
@@ -31,6 +32,9 @@ import spark.Request;
  */
 public class RetrieveParameters
 {
+	private static final Pattern UID_PATTERN = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+
+	private static final int MAX_UID_LENGTH = 64;
 
 	/**
 	 * Create a retrieve parameters instance from the specified request
@@ -58,9 +62,65 @@ public class RetrieveParameters
 			}
 		}
 
+		checkUids(studyUid, seriesUid, instanceUid);
+
+		this.level = level;
+	}
+
+	/**
+	 * Create a retrieve parameters instance for a retrieve that was not
+	 * requested by a client (e.g. part of a larger retrieve)
+	 *
+	 * @param studyUid the study UID (cannot be blank)
+	 * @param seriesUid the series UID (can be null for study level)
+	 * @param instanceUid the instance UID (can be null for study or series
+	 * level)
+	 * @param level the level (cannot be null)
+	 */
+	public RetrieveParameters(String studyUid,
+							  String seriesUid,
+							  String instanceUid,
+							  Level level)
+	{
+		if (StringUtils.isBlank(studyUid)) {
+			throw new IllegalArgumentException("Study UID cannot be blank");
+		}
+
+		if (StringUtils.isNotBlank(instanceUid) && StringUtils.isBlank(seriesUid)) {
+			throw new IllegalArgumentException("Series UID cannot be blank if an instance UID is specified");
+		}
+
+		checkUids(studyUid, seriesUid, instanceUid);
+
+		this.studyUid = studyUid;
+		this.seriesUid = seriesUid;
+		this.instanceUid = instanceUid;
 		this.level = level;
 	}
 
+	/**
+	 * Determine if a value is a valid DICOM UID. Only valid UIDs are accepted
+	 * since they are used to build the paths of the cached files.
+	 *
+	 * @param uid the value to check
+	 * @return true if the value is a UID
+	 */
+	public static boolean isValidUid(String uid)
+	{
+		return uid != null
+			   && uid.length() <= MAX_UID_LENGTH
+			   && UID_PATTERN.matcher(uid).matches();
+	}
+
+	private static void checkUids(String... uids)
+	{
+		for (String uid : uids) {
+			if (StringUtils.isNotBlank(uid) && !isValidUid(uid)) {
+				throw new IllegalArgumentException("Invalid UID: " + uid);
+			}
+		}
+	}
+
 	private final String studyUid;
 
 	/**
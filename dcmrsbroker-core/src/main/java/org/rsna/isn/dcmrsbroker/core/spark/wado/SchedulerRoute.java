@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark.wado;
+
+import java.io.StringWriter;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrievePriority;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveScheduler;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveScheduler.LaneMetrics;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Route that returns the queue depths and wait times of the retrieve
+ * scheduler as JSON
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class SchedulerRoute implements Route
+{
+	@Override
+	public Object handle(Request request, Response response) throws Exception
+	{
+		StringWriter out = new StringWriter();
+		try (JsonGenerator gen = Json.createGenerator(out)) {
+			gen.writeStartArray();
+
+			for (LaneMetrics metrics : RetrieveScheduler.getMetrics()) {
+				gen.writeStartObject();
+				gen.write("remoteAe", metrics.getName());
+				gen.write("limit", metrics.getLimit());
+				gen.write("running", metrics.getRunning());
+
+				for (RetrievePriority priority : RetrievePriority.values()) {
+					gen.writeStartObject(priority.name().toLowerCase());
+					gen.write("queued", metrics.getQueued(priority));
+					gen.write("oldestWaitMs", metrics.getOldestWait(priority));
+					gen.write("dispatched", metrics.getDispatched(priority));
+					gen.write("averageWaitMs", metrics.getAverageWait(priority));
+					gen.write("maxWaitMs", metrics.getMaxWait(priority));
+					gen.writeEnd();
+				}
+
+				gen.writeEnd();
+			}
+
+			gen.writeEnd();
+		}
+
+		response.type("application/json");
+		response.header("Cache-Control", "no-cache");
+
+		return out.toString();
+	}
+
+}
@@ -19,6 +19,7 @@ package org.rsna.isn.dcmrsbroker.core.spark.wado;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.ArrivalQueue;
 import org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -182,6 +183,8 @@ abstract class WadoResponse
 			}
 
 			finish();
+
+			entry.touch();
 		}
 		else if (hasAcceptableInstance()) {
 			// All instances are unacceptable			
@@ -196,4 +199,46 @@ abstract class WadoResponse
 		return response.raw();
 	}
 
+	/**
+	 * Send the objects of a running retrieve as they arrive. The status is
+	 * sent before it is known whether all objects can be sent, so objects the
+	 * client cannot accept are skipped. If the retrieve fails, the response
+	 * is ended without finishing it so the client can tell it is incomplete.
+	 *
+	 * @param queue the queue of arriving objects. At least one object should
+	 * be available.
+	 * @return the raw response
+	 * @throws Exception if there was an error sending the response
+	 */
+	protected Object stream(ArrivalQueue queue) throws Exception
+	{
+		response.status(200);
+		response.type(getContentType());
+
+		Path p;
+		while ((p = queue.take()) != null) {
+			if (isAcceptable(p)) {
+				send(p);
+
+				response.raw().flushBuffer();
+			}
+			else {
+				logger.info("Ignoring file: {}", p);
+			}
+		}
+
+		CacheEntry result = queue.getResult();
+		if (result.getStatus() == CacheEntry.Status.COMPLETED) {
+			finish();
+
+			result.touch();
+		}
+		else {
+			logger.warn("Retrieve failed while streaming response. Error: {}",
+						result.getError());
+		}
+
+		return response.raw();
+	}
+
 }
@@ -16,14 +16,18 @@
 package org.rsna.isn.dcmrsbroker.core.spark.wado;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.ws.rs.core.MediaType;
+import org.apache.commons.lang3.time.DateUtils;
 import static org.dcm4che3.ws.rs.MediaTypes.APPLICATION_DICOM_TYPE;
 import static org.dcm4che3.ws.rs.MediaTypes.getMultiPartRelatedType;
 import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.ArrivalQueue;
 import org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry;
 import org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status;
 import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
-import org.rsna.isn.dcmrsbroker.core.dcm.wado.MoveScu;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveJob;
+import org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrieveScu;
 import org.rsna.isn.dcmrsbroker.core.util.Environment;
 import static org.rsna.isn.dcmrsbroker.core.util.Environment.Key.*;
 import org.rsna.isn.dcmrsbroker.core.util.HttpUtil;
@@ -44,7 +48,21 @@ public class WadoRoute implements Route
 {
 	private static final Logger logger = LoggerFactory.getLogger(WadoRoute.class);
 	
-	private static String retryAfter = Environment.getProperty(WADO_HTTP_RETRY_AFTER);
+	private static final int retryAfter = Environment.getPropertyAsInt(WADO_HTTP_RETRY_AFTER);
+
+	private static final int minRetryAfter = Environment.getPropertyAsInt(WADO_HTTP_MIN_RETRY_AFTER);
+
+	private static final String wadoBase = Environment.getProperty(WADO_URL_BASE);
+
+	private static final int defaultWait = Environment.getPropertyAsInt(WADO_WAIT_IN_SECS);
+
+	private static final int maxWait = Environment.getPropertyAsInt(WADO_MAX_WAIT_IN_SECS);
+
+	private static final int maxWaitingRequests = Environment.getPropertyAsInt(WADO_MAX_WAITING_REQUESTS);
+
+	private static final AtomicInteger waitingRequests = new AtomicInteger();
+
+	private static final boolean streaming = Environment.getPropertyAsBoolean(WADO_STREAMING);
 
 	protected final Level level;
 
@@ -56,15 +74,48 @@ public class WadoRoute implements Route
 	@Override
 	public final Object handle(Request request, Response response) throws Exception
 	{
-		RetrieveParameters params = new RetrieveParameters(request, level);
+		RetrieveParameters params;
+		try {
+			params = new RetrieveParameters(request, level);
+		}
+		catch (IllegalArgumentException ex) {
+			response.status(400);
+			response.type("text/plain; charset=UTF-8");
+
+			return ex.getMessage();
+		}
+
+		RetrieveScu retrieve = RetrieveScu.create(params);
+		CacheEntry entry = retrieve.doRetrieve();
+		if (entry.getStatus() == IN_PROGRESS) {
+			if (streaming && entry.getJob() != null) {
+				Object body = stream(request, response, params, entry);
+				if (body != null) {
+					return body;
+				}
 
-		MoveScu move = new MoveScu(params);
-		CacheEntry entry = move.doRetrieve();
+				entry = retrieve.doRetrieve();
+			}
+			else {
+				entry = await(retrieve, entry, getWait(request));
+			}
+		}
 
 		Status status = entry.getStatus();
 		if (status == IN_PROGRESS) {
+			long retryAfter = getRetryAfter(entry.getJob());
+
 			response.status(503);
-			response.header("Retry-After", retryAfter);
+			response.header("Retry-After", Long.toString(retryAfter));
+
+			RetrieveJob job = entry.getJob();
+			if (job != null) {
+				response.header("Location", wadoBase + "/jobs/" + job.getId());
+
+				// The client was told to come back, so it still needs the job
+				job.addInterest(System.currentTimeMillis()
+								+ retryAfter * DateUtils.MILLIS_PER_SECOND);
+			}
 
 			return "";
 		}
@@ -89,6 +140,145 @@ public class WadoRoute implements Route
 		}
 	}
 
+	/**
+	 * Get how long a request may wait for its retrieve to finish. The Prefer
+	 * header of the request overrides the configured default.
+	 *
+	 * @param request the request
+	 * @return the time in ms (0 if the request should not wait)
+	 */
+	private static long getWait(Request request)
+	{
+		int wait = HttpUtil.getPreferredWait(request);
+		if (wait < 0) {
+			wait = defaultWait;
+		}
+
+		return Math.min(wait, maxWait) * DateUtils.MILLIS_PER_SECOND;
+	}
+
+	/**
+	 * Wait for a retrieve to finish. The number of requests waiting at the
+	 * same time is bounded, requests over the limit return immediately.
+	 *
+	 * @param retrieve the SCU that was used to get the entry
+	 * @param entry the in progress entry
+	 * @param wait the maximum time to wait in ms
+	 * @return the latest entry for the request
+	 * @throws Exception if the cache could not be read
+	 */
+	private static CacheEntry await(RetrieveScu retrieve,
+									CacheEntry entry,
+									long wait) throws Exception
+	{
+		if (wait <= 0) {
+			return entry;
+		}
+
+		if (waitingRequests.incrementAndGet() > maxWaitingRequests) {
+			waitingRequests.decrementAndGet();
+
+			return entry;
+		}
+
+		try {
+			long deadline = System.currentTimeMillis() + wait;
+			while (entry.getStatus() == IN_PROGRESS && entry.getJob() != null) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					break;
+				}
+
+				RetrieveJob job = entry.getJob();
+				job.addWaiter();
+				try {
+					if (job.awaitResult(left) == null) {
+						break;
+					}
+				}
+				finally {
+					job.removeWaiter();
+				}
+
+				// The job may have been for a larger request
+				entry = retrieve.doRetrieve();
+			}
+
+			return entry;
+		}
+		finally {
+			waitingRequests.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Stream the objects of a running retrieve as they arrive. The response
+	 * starts once the first object is in the cache. Streaming requests count
+	 * against the limit of waiting requests.
+	 *
+	 * @param request the request
+	 * @param response the response
+	 * @param params the request parameters
+	 * @param entry the in progress entry
+	 * @return the body or null if nothing was sent because no object arrived
+	 * in time, the retrieve finished without objects or the limit of waiting
+	 * requests was reached
+	 * @throws Exception if there was an error sending the response
+	 */
+	private Object stream(Request request,
+						  Response response,
+						  RetrieveParameters params,
+						  CacheEntry entry) throws Exception
+	{
+		WadoResponse wRsp = buildResponse(request, response, entry);
+		if (wRsp == null) {
+			return null;
+		}
+
+		if (waitingRequests.incrementAndGet() > maxWaitingRequests) {
+			waitingRequests.decrementAndGet();
+
+			return null;
+		}
+
+		RetrieveJob job = entry.getJob();
+		job.addWaiter();
+		try (ArrivalQueue queue = ArrivalQueue.open(params, job)) {
+			if (queue.await(maxWait * DateUtils.MILLIS_PER_SECOND)) {
+				return wRsp.stream(queue);
+			}
+			else {
+				return null;
+			}
+		}
+		finally {
+			job.removeWaiter();
+
+			waitingRequests.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of seconds a client should wait before trying again.
+	 * Based on the estimated completion time of the retrieve if there is one,
+	 * otherwise the configured value.
+	 *
+	 * @param job the job performing the retrieve (may be null)
+	 * @return the number of seconds
+	 */
+	private static long getRetryAfter(RetrieveJob job)
+	{
+		long eta = job != null ? job.getEstimatedCompletion() : -1;
+		if (eta < 0) {
+			return retryAfter;
+		}
+
+		long secs = (eta - System.currentTimeMillis() + DateUtils.MILLIS_PER_SECOND - 1)
+					/ DateUtils.MILLIS_PER_SECOND;
+
+		return Math.max(minRetryAfter, Math.min(retryAfter, secs));
+	}
+
 	private WadoResponse buildResponse(Request request,
 									   Response response,
 									   CacheEntry entry) throws Exception
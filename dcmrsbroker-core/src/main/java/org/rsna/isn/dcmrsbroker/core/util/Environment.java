@@ -158,6 +158,17 @@ public class Environment
 		return Integer.parseInt(getProperty(key));
 	}
 
+	/**
+	 * Get the specified property as a long. 
+	 *
+	 * @param key the key (must not be null)
+	 * @return the property value or the default if not found
+	 */
+	public static long getPropertyAsLong(Key key)
+	{
+		return Long.parseLong(getProperty(key));
+	}
+
 	/**
 	 * Get the specified property as a boolean. 
 	 *
@@ -175,6 +186,16 @@ public class Environment
 		QIDO_LOCAL_AE("qido.local_ae", true),
 		QIDO_REMOTE_HOST("qido.remote_host", true),
 		QIDO_REMOTE_PORT("qido.remote_port", "11112"),
+		QIDO_BACKENDS("qido.backends", ""),
+		QIDO_FEDERATED("qido.federated", "false"),
+		QIDO_BACKEND_TIMEOUT_IN_SECS("qido.backend_timeout_in_secs", "30"),
+		QIDO_STREAMING("qido.streaming", "false"),
+		QIDO_CACHE_TTL_IN_SECS("qido.cache_ttl_in_secs", "0"),
+		QIDO_CACHE_MAX_SIZE_IN_BYTES("qido.cache_max_size_in_bytes", "67108864"),
+		QIDO_CURSOR_TTL_IN_SECS("qido.cursor_ttl_in_secs", "0"),
+		QIDO_CURSOR_SPILL_THRESHOLD_IN_BYTES("qido.cursor_spill_threshold_in_bytes", "1048576"),
+		QIDO_CURSOR_MAX_MATCHES("qido.cursor_max_matches", "10000"),
+		QIDO_LOCAL_INDEX("qido.local_index", "false"),
 		QIDO_URL_BASE("qido.url_base", "/qido-rs"),
 		
 		
@@ -182,11 +203,36 @@ public class Environment
 		WADO_LOCAL_AE("wado.local_ae", true),
 		WADO_REMOTE_HOST("wado.remote_host", true),
 		WADO_REMOTE_PORT("wado.remote_port", "11112"),
+		WADO_BACKENDS("wado.backends", ""),
 		WADO_HTTP_RETRY_AFTER("wado.http_retry_after", "600"),
+		WADO_HTTP_MIN_RETRY_AFTER("wado.http_min_retry_after", "5"),
+		WADO_WAIT_IN_SECS("wado.wait_in_secs", "0"),
+		WADO_MAX_WAIT_IN_SECS("wado.max_wait_in_secs", "60"),
+		WADO_MAX_WAITING_REQUESTS("wado.max_waiting_requests", "50"),
+		WADO_STREAMING("wado.streaming", "false"),
 		WADO_RETRY_DELAY_IN_SECS("wado.retry_delay_in_secs", "600"),
 		WADO_MAX_RETRY_ATTEMPTS("wado.max_retry_attempts", "6"),
+		WADO_MAX_RETRY_DELAY_IN_SECS("wado.max_retry_delay_in_secs", "3600"),
+		WADO_CIRCUIT_BREAKER_THRESHOLD("wado.circuit_breaker_threshold", "5"),
+		WADO_CIRCUIT_BREAKER_RESET_IN_SECS("wado.circuit_breaker_reset_in_secs", "60"),
+		WADO_HEDGE_RETRIEVES("wado.hedge_retrieves", "false"),
+		WADO_CANCEL_ABANDONED_AFTER_IN_SECS("wado.cancel_abandoned_after_in_secs", "0"),
 		WADO_RETRIEVE_TIMEOUT_IN_SECS("wado.retrieve_timeout_in_secs", "120"),
 		WADO_IGNORE_MISSING_OBJECTS("wado.ignore_missing_objects", "false"),
+		WADO_FAN_OUT_MIN_INSTANCES("wado.fan_out_min_instances", "0"),
+		WADO_INVENTORY("wado.inventory", "false"),
+		WADO_INVENTORY_TTL_IN_SECS("wado.inventory_ttl_in_secs", "300"),
+		WADO_MAX_CONCURRENT_MOVES("wado.max_concurrent_moves", "4"),
+		WADO_RETRIEVE_MODE("wado.retrieve_mode", "cmove"),
+		WADO_MAX_CONCURRENT_RETRIEVES("wado.max_concurrent_retrieves", "0"),
+		WADO_RESERVED_INTERACTIVE_RETRIEVES("wado.reserved_interactive_retrieves", "1"),
+		WADO_PREFETCH_POLICY("wado.prefetch_policy", "none"),
+		WADO_PREFETCH_MAX_STUDIES("wado.prefetch_max_studies", "3"),
+		WADO_PREFETCH_MAX_PER_PATIENT("wado.prefetch_max_per_patient", "5"),
+		WADO_PREFETCH_WINDOW_IN_MIN("wado.prefetch_window_in_min", "60"),
+		WADO_PREFETCH_MAX_RUNNING("wado.prefetch_max_running", "20"),
+		WADO_PREFETCH_MAX_BATCH_SIZE("wado.prefetch_max_batch_size", "1000"),
+		WADO_EXPAND_TO_LEVEL("wado.expand_to_level", "none"),
 		WADO_URL_BASE("wado.url_base", "/wado-rs"),
 		
 		
@@ -194,7 +240,19 @@ public class Environment
 		SCP_LOCAL_AE("scp.local_ae", true),
 		SCP_LOCAL_PORT("scp.local_port", "11112"),
 		SCP_CACHE_DIR_PATH("scp.cache_dir_path", true),
-		SCP_CACHE_MAX_AGE("scp.cache_max_age_in_min", "60");
+		SCP_CACHE_MAX_AGE("scp.cache_max_age_in_min", "60"),
+		SCP_CACHE_WARM_START("scp.cache_warm_start", "false"),
+		SCP_CACHE_MAX_SIZE("scp.cache_max_size_in_bytes", "0"),
+		SCP_CACHE_EVICTION_POLICY("scp.cache_eviction_policy", "LRU"),
+		SCP_CACHE_HIGH_WATERMARK("scp.cache_high_watermark", "90"),
+		SCP_CACHE_LOW_WATERMARK("scp.cache_low_watermark", "75"),
+
+
+
+		SCU_POOL_MAX_IDLE("scu.pool_max_idle", "4"),
+		SCU_POOL_MIN_IDLE("scu.pool_min_idle", "0"),
+		SCU_POOL_IDLE_TIMEOUT_IN_SECS("scu.pool_idle_timeout_in_secs", "60"),
+		SCU_HEALTH_CHECK_INTERVAL_IN_SECS("scu.health_check_interval_in_secs", "30");
 
 		private Key(String propName, boolean required)
 		{
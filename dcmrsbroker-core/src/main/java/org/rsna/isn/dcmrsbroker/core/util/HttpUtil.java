@@ -57,4 +57,31 @@ public class HttpUtil
 		return Collections.unmodifiableList(acceptable);
 	}
 
+	/**
+	 * Get the value of the "wait" preference in the Prefer header(s) of a
+	 * request. See: https://tools.ietf.org/html/rfc7240#section-4.3
+	 *
+	 * @param request the request (cannot be null)
+	 * @return the number of seconds or -1 if the preference is not present
+	 */
+	public static int getPreferredWait(Request request)
+	{
+		HttpServletRequest rawReq = request.raw();
+		for (String value : Collections.list(rawReq.getHeaders("Prefer"))) {
+			for (String pref : StringUtils.split(value, ',')) {
+				String token = StringUtils.split(pref, ';')[0].trim();
+				if (token.regionMatches(true, 0, "wait=", 0, 5)) {
+					try {
+						return Math.max(0, Integer.parseInt(token.substring(5).trim()));
+					}
+					catch (NumberFormatException ex) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		return -1;
+	}
+
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the state transitions of the circuit breaker
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class CircuitBreakerTest
+{
+	private static final long RESET_TIMEOUT = 50;
+
+	@Test
+	public void opensAfterConsecutiveFailures()
+	{
+		CircuitBreaker breaker = create(3);
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+
+		breaker.recordFailure();
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void neverOpensWithoutThreshold()
+	{
+		CircuitBreaker breaker = create(0);
+		for (int i = 0; i < 10; i++) {
+			breaker.recordFailure();
+		}
+
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void letsOneTrialThroughAfterResetTimeout() throws Exception
+	{
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(RESET_TIMEOUT);
+
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		assertTrue(breaker.isOpen());
+
+		breaker.recordSuccess();
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void failedTrialOpensAgain() throws Exception
+	{
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(RESET_TIMEOUT);
+		assertTrue(breaker.allowRequest());
+
+		breaker.recordFailure();
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void releasedTrialLetsNextRequestThrough() throws Exception
+	{
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(RESET_TIMEOUT);
+		assertTrue(breaker.allowRequest());
+
+		breaker.releaseTrial();
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void trialIsOnlyReleasedByItsThread() throws Exception
+	{
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(RESET_TIMEOUT);
+		assertTrue(breaker.allowRequest());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(breaker::releaseTrial).get();
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void unfinishedTrialExpires() throws Exception
+	{
+		CircuitBreaker breaker = open();
+
+		Thread.sleep(RESET_TIMEOUT);
+		assertTrue(breaker.allowRequest());
+
+		// The trial never reports, so the breaker opens again for another
+		// reset timeout before the next trial
+		Thread.sleep(RESET_TIMEOUT);
+		assertFalse(breaker.allowRequest());
+
+		Thread.sleep(RESET_TIMEOUT);
+		assertTrue(breaker.allowRequest());
+	}
+
+	private static CircuitBreaker create(int threshold)
+	{
+		return CircuitBreaker.get(UUID.randomUUID().toString(), "localhost", 104,
+								  threshold, RESET_TIMEOUT);
+	}
+
+	private static CircuitBreaker open()
+	{
+		CircuitBreaker breaker = create(1);
+		breaker.recordFailure();
+		assertTrue(breaker.isOpen());
+
+		return breaker;
+	}
+
+}
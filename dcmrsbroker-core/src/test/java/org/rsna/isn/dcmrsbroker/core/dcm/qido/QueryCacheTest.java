@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.TestRequest;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for caching, invalidating and sharing query results
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class QueryCacheTest
+{
+	@Test
+	public void resultsAreCached() throws Exception
+	{
+		QueryParameters params = query("P1");
+		TestFindScu cfind = new TestFindScu("5.1");
+
+		List<Attributes> first = QueryCache.get(params, cfind);
+		List<Attributes> second = QueryCache.get(query("P1"), cfind);
+
+		assertEquals(1, cfind.getCalls());
+		assertSame(first, second);
+	}
+
+	@Test(timeout = 10000)
+	public void identicalQueriesShareTheRunningQuery() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu("5.2").hold();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<List<Attributes>> first
+					= executor.submit(() -> QueryCache.get(query("P2"), cfind));
+			cfind.awaitStarted();
+
+			Future<List<Attributes>> second
+					= executor.submit(() -> QueryCache.get(query("P2"), cfind));
+			Thread.sleep(100);
+
+			cfind.release();
+
+			assertSame(first.get(), second.get());
+			assertEquals(1, cfind.getCalls());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void storedObjectOfContainedStudyInvalidates() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu("5.3");
+		QueryCache.get(query("P3"), cfind);
+
+		QueryCache.invalidate(object("9.3", "OTHER"));
+		QueryCache.get(query("P3"), cfind);
+		assertEquals(1, cfind.getCalls());
+
+		QueryCache.invalidate(object("5.3", "OTHER"));
+		QueryCache.get(query("P3"), cfind);
+		assertEquals(2, cfind.getCalls());
+	}
+
+	@Test
+	public void storedObjectMatchingQueryInvalidates() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu("5.4");
+		QueryCache.get(query("P4"), cfind);
+
+		QueryCache.invalidate(object("9.4", "P4"));
+		QueryCache.get(query("P4"), cfind);
+		assertEquals(2, cfind.getCalls());
+	}
+
+	@Test(timeout = 10000)
+	public void objectStoredWhileRunningIsNotMissed() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu("5.5").hold();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<Attributes>> first
+					= executor.submit(() -> QueryCache.get(query("P5"), cfind));
+			cfind.awaitStarted();
+
+			QueryCache.invalidate(object("5.5", "P5"));
+			cfind.release();
+			first.get();
+
+			QueryCache.get(query("P5"), cfind);
+			assertEquals(2, cfind.getCalls());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static QueryParameters query(String patientId)
+	{
+		return new QueryParameters(new TestRequest().query("PatientID", patientId),
+								   Level.STUDY);
+	}
+
+	private static Attributes object(String studyUid, String patientId)
+	{
+		Attributes attrs = new Attributes();
+		attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		attrs.setString(Tag.PatientID, VR.LO, patientId);
+
+		return attrs;
+	}
+
+}
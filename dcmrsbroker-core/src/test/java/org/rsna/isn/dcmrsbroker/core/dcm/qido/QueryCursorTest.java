@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.TestRequest;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for paging through query snapshots. The test settings spill
+ * snapshots larger than 1 KiB to disk and keep at most 50 matches.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class QueryCursorTest
+{
+	@Test(timeout = 10000)
+	public void pagesShareOneQuery() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu(40);
+
+		QueryCursor.Page first = QueryCursor.getPage(query("C1", 0, 10), cfind);
+		assertEquals(range(1, 10), uids(first));
+
+		QueryCursor.Page last = QueryCursor.getPage(query("C1", 30, 20), cfind);
+		assertEquals(range(31, 40), uids(last));
+		assertEquals(first.getCursor(), last.getCursor());
+		assertFalse(last.isTruncated());
+
+		assertEquals(1, cfind.getCalls());
+	}
+
+	@Test(timeout = 10000)
+	public void cursorSelectsSnapshot() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu(40);
+		String cursor = QueryCursor.getPage(query("C2", 0, 10), cfind).getCursor();
+
+		QueryParameters params = new QueryParameters(new TestRequest()
+				.query("PatientID", "C2-OTHER")
+				.query("offset", "10")
+				.query("limit", "5")
+				.query("cursor", cursor), Level.STUDY);
+		QueryCursor.Page page = QueryCursor.getPage(params, cfind);
+
+		assertEquals(range(11, 15), uids(page));
+		assertEquals(cursor, page.getCursor());
+		assertEquals(1, cfind.getCalls());
+	}
+
+	@Test(timeout = 10000)
+	public void smallSnapshotIsPaged() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu(3);
+
+		assertEquals(range(2, 3), uids(QueryCursor.getPage(query("C3", 1, 10), cfind)));
+		assertEquals(range(1, 0), uids(QueryCursor.getPage(query("C3", 5, 10), cfind)));
+		assertEquals(1, cfind.getCalls());
+	}
+
+	@Test(timeout = 10000)
+	public void snapshotIsTruncated() throws Exception
+	{
+		TestFindScu cfind = new TestFindScu(60);
+
+		QueryCursor.Page first = QueryCursor.getPage(query("C4", 0, 10), cfind);
+		assertEquals(range(1, 10), uids(first));
+		assertFalse(first.isTruncated());
+
+		QueryCursor.Page last = QueryCursor.getPage(query("C4", 40, 20), cfind);
+		assertEquals(range(41, 50), uids(last));
+		assertTrue(last.isTruncated());
+	}
+
+	private static QueryParameters query(String patientId, int offset, int limit)
+	{
+		return new QueryParameters(new TestRequest()
+				.query("PatientID", patientId)
+				.query("offset", Integer.toString(offset))
+				.query("limit", Integer.toString(limit)), Level.STUDY);
+	}
+
+	private static List<String> uids(QueryCursor.Page page)
+	{
+		List<String> uids = new ArrayList();
+		for (Attributes result : page.getResults()) {
+			uids.add(result.getString(Tag.StudyInstanceUID));
+		}
+
+		return uids;
+	}
+
+	/**
+	 * The study UIDs of the canned matches from first to last (inclusive)
+	 */
+	private static List<String> range(int first, int last)
+	{
+		List<String> uids = new ArrayList();
+		for (int i = first; i <= last; i++) {
+			uids.add("6." + i);
+		}
+
+		return uids;
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.qido;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import org.rsna.isn.dcmrsbroker.core.util.ExecutorServiceFactory;
+
+/**
+ * A find SCU that returns canned matches instead of querying a remote AE
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+class TestFindScu extends FindScu
+{
+	private final List<Attributes> matches = new ArrayList();
+
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private final CountDownLatch started = new CountDownLatch(1);
+
+	private volatile CountDownLatch gate = new CountDownLatch(0);
+
+	/**
+	 * Create an SCU that returns one match per study UID
+	 *
+	 * @param studyUids the study UIDs of the matches
+	 */
+	TestFindScu(String... studyUids)
+	{
+		for (String studyUid : studyUids) {
+			matches.add(study(studyUid));
+		}
+	}
+
+	/**
+	 * Create an SCU that returns the given number of matches
+	 *
+	 * @param count the number of matches
+	 */
+	TestFindScu(int count)
+	{
+		for (int i = 1; i <= count; i++) {
+			matches.add(study("6." + i));
+		}
+	}
+
+	/**
+	 * Hold queries until {@link #release()} is called
+	 *
+	 * @return this SCU
+	 */
+	TestFindScu hold()
+	{
+		gate = new CountDownLatch(1);
+
+		return this;
+	}
+
+	/**
+	 * Let held queries complete
+	 */
+	void release()
+	{
+		gate.countDown();
+	}
+
+	/**
+	 * Wait until the first query has started
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void awaitStarted() throws InterruptedException
+	{
+		started.await();
+	}
+
+	int getCalls()
+	{
+		return calls.get();
+	}
+
+	@Override
+	public List<Attributes> doQuery(QueryParameters params, int offset, int limit)
+			throws InterruptedException
+	{
+		calls.incrementAndGet();
+		started.countDown();
+		gate.await();
+
+		int from = Math.min(offset, matches.size());
+		int to = limit > 0 ? Math.min(from + limit, matches.size()) : matches.size();
+
+		return new ArrayList(matches.subList(from, to));
+	}
+
+	@Override
+	public QueryStream openQuery(QueryParameters params, int offset, int limit)
+	{
+		QueryStream stream = new QueryStream();
+		Future<?> task = ExecutorServiceFactory.getService().submit(() -> {
+			try {
+				doQuery(params, offset, limit).forEach(stream::put);
+				stream.finish(null);
+			}
+			catch (Exception ex) {
+				stream.finish(ex);
+			}
+		});
+		stream.setTask(task);
+
+		return stream;
+	}
+
+	static Attributes study(String studyUid)
+	{
+		Attributes attrs = new Attributes();
+		attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		attrs.setString(Tag.PatientName, VR.PN, "Test^Patient");
+
+		return attrs;
+	}
+
+}
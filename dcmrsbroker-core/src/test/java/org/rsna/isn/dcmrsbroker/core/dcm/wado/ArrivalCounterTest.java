@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for diffing the inventory of a study against the objects that are
+ * cached or have arrived
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class ArrivalCounterTest
+{
+	@BeforeClass
+	public static void setUpClass()
+	{
+		CacheManager.init();
+	}
+
+	@Test
+	public void cachedObjectsAreCounted() throws Exception
+	{
+		String studyUid = "4.1";
+		touch(studyUid, "1.1", "1.1.1");
+		touch(studyUid, "1.2", "1.2.1");
+
+		try (ArrivalCounter counter = ArrivalCounter.open(study(studyUid))) {
+			assertEquals(2, counter.getCount());
+			assertEquals(new HashSet(Arrays.asList("1.1.2")),
+						 counter.getMissing(Arrays.asList("1.1.1", "1.1.2", "1.2.1")));
+		}
+	}
+
+	@Test
+	public void publishedObjectsAreCounted() throws Exception
+	{
+		String studyUid = "4.2";
+		touch(studyUid, "1.1", "1.1.1");
+
+		try (ArrivalCounter counter = ArrivalCounter.open(study(studyUid))) {
+			ArrivalCounter.publish(studyUid, "1.1", "1.1.2");
+			ArrivalCounter.publish(studyUid, "1.1", "1.1.2");
+
+			assertEquals(2, counter.getCount());
+			assertEquals(Collections.emptySet(),
+						 counter.getMissing(Arrays.asList("1.1.1", "1.1.2")));
+			assertEquals(CacheManager.buildFile(studyUid, "1.1", "1.1.2", "dcm").toPath(),
+						 counter.getFile(1));
+		}
+	}
+
+	@Test
+	public void otherSeriesAreIgnored() throws Exception
+	{
+		String studyUid = "4.3";
+		touch(studyUid, "1.2", "1.2.1");
+
+		RetrieveParameters params = new RetrieveParameters(studyUid,
+														   "1.1",
+														   null,
+														   Level.SERIES);
+		try (ArrivalCounter counter = ArrivalCounter.open(params)) {
+			assertEquals(0, counter.getCount());
+
+			ArrivalCounter.publish(studyUid, "1.2", "1.2.2");
+			ArrivalCounter.publish(studyUid, "1.1", "1.1.1");
+
+			assertEquals(1, counter.getCount());
+			assertEquals(new HashSet(Arrays.asList("1.1.2")),
+						 counter.getMissing(Arrays.asList("1.1.1", "1.1.2")));
+		}
+	}
+
+	@Test
+	public void closedCounterIsNotUpdated() throws Exception
+	{
+		String studyUid = "4.4";
+
+		ArrivalCounter counter = ArrivalCounter.open(study(studyUid));
+		counter.close();
+
+		ArrivalCounter.publish(studyUid, "1.1", "1.1.1");
+
+		assertEquals(0, counter.getCount());
+	}
+
+	@Test(timeout = 10000)
+	public void waiterIsWokenByArrival() throws Exception
+	{
+		String studyUid = "4.5";
+
+		try (ArrivalCounter counter = ArrivalCounter.open(study(studyUid))) {
+			assertEquals(0, counter.awaitChange(0, 50));
+
+			Thread publisher = new Thread(() -> {
+				ArrivalCounter.publish(studyUid, "1.1", "1.1.1");
+			});
+			publisher.start();
+
+			assertEquals(1, counter.awaitChange(0, 5000));
+			publisher.join();
+		}
+	}
+
+	private static RetrieveParameters study(String studyUid)
+	{
+		return new RetrieveParameters(studyUid, null, null, Level.STUDY);
+	}
+
+	private static void touch(String studyUid, String seriesUid, String instanceUid)
+			throws Exception
+	{
+		FileUtils.touch(CacheManager.buildFile(studyUid, seriesUid, instanceUid, "dcm"));
+	}
+
+}
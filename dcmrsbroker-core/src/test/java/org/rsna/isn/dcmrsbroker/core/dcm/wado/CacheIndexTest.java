@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import static org.junit.Assert.*;
+import static org.rsna.isn.dcmrsbroker.core.dcm.wado.CacheEntry.Status.*;
+
+/**
+ * Tests for the journal of the cache index
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class CacheIndexTest
+{
+	private static final String STUDY = "1.2.3";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	private CacheIndex index;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = folder.newFolder();
+		index = open();
+	}
+
+	@After
+	public void tearDown()
+	{
+		index.close();
+	}
+
+	@Test
+	public void replayRestoresFinishedEntries() throws IOException
+	{
+		index.put(STUDY, null, null, completed(STUDY, 10, 1));
+		index.put(STUDY, "4", null, new CacheEntry("failed", 2, 3, 0));
+		index.put(STUDY, "5", "6", inProgress(STUDY));
+
+		reopen();
+
+		CacheEntry study = index.get(STUDY, null, null);
+		assertEquals(COMPLETED, study.getStatus());
+		assertEquals(10, study.getCompleted());
+		assertEquals(1, study.getWarning());
+
+		CacheEntry series = index.get(STUDY, "4", null);
+		assertEquals(FAILED, series.getStatus());
+		assertEquals("failed", series.getError());
+		assertEquals(3, series.getFailed());
+
+		// Retrieves do not survive a restart
+		assertNull(index.get(STUDY, "5", "6"));
+	}
+
+	@Test
+	public void replayAppliesRemovals() throws IOException
+	{
+		index.put(STUDY, "4", null, completed(STUDY, 1, 0));
+		index.put(STUDY, "5", null, completed(STUDY, 1, 0));
+		index.put("7.8", null, null, completed("7.8", 1, 0));
+
+		index.remove(STUDY, "4", null);
+		index.removeStudy("7.8");
+
+		reopen();
+
+		assertNull(index.get(STUDY, "4", null));
+		assertNotNull(index.get(STUDY, "5", null));
+		assertTrue(index.getEntries("7.8").isEmpty());
+		assertFalse(index.getStudyUids().contains("7.8"));
+	}
+
+	@Test
+	public void compactDropsSupersededRecords() throws IOException
+	{
+		for (int i = 0; i < 100; i++) {
+			index.put(STUDY, null, null, completed(STUDY, i, 0));
+		}
+
+		File journal = new File(dir, CacheIndex.JOURNAL_NAME);
+		long before = journal.length();
+
+		index.compact();
+
+		assertTrue(journal.length() < before);
+		assertFalse(new File(dir, CacheIndex.JOURNAL_NAME + ".tmp").exists());
+
+		// Still open for appending after the rewrite
+		index.put(STUDY, "4", null, completed(STUDY, 1, 0));
+
+		reopen();
+
+		assertEquals(99, index.get(STUDY, null, null).getCompleted());
+		assertNotNull(index.get(STUDY, "4", null));
+	}
+
+	@Test
+	public void writeReopensClosedJournal() throws IOException
+	{
+		// As left behind when the journal cannot be reopened after a compaction
+		index.close();
+
+		index.put(STUDY, null, null, completed(STUDY, 1, 0));
+
+		reopen();
+
+		assertNotNull(index.get(STUDY, null, null));
+	}
+
+	@Test
+	public void replayIgnoresTruncatedRecord() throws IOException
+	{
+		index.put(STUDY, null, null, completed(STUDY, 1, 0));
+		index.put(STUDY, "4", null, completed(STUDY, 2, 0));
+		index.close();
+
+		try (DataOutputStream out = append()) {
+			out.writeByte(1);
+			out.writeUTF(STUDY);
+		}
+
+		index = open();
+
+		assertNotNull(index.get(STUDY, null, null));
+		assertNotNull(index.get(STUDY, "4", null));
+	}
+
+	@Test
+	public void replayStopsAtInvalidStatus() throws IOException
+	{
+		index.put(STUDY, null, null, completed(STUDY, 1, 0));
+		index.close();
+
+		try (DataOutputStream out = append()) {
+			out.writeByte(1);
+			out.writeUTF(STUDY);
+			out.writeUTF("4");
+			out.writeByte(99);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeUTF("");
+		}
+
+		index = open();
+
+		assertNotNull(index.get(STUDY, null, null));
+		assertNull(index.get(STUDY, "4", null));
+	}
+
+	private CacheIndex open() throws IOException
+	{
+		CacheIndex tmp = new CacheIndex(dir);
+		tmp.open();
+
+		return tmp;
+	}
+
+	private void reopen() throws IOException
+	{
+		index.close();
+		index = open();
+	}
+
+	private DataOutputStream append() throws IOException
+	{
+		return new DataOutputStream(new FileOutputStream(
+				new File(dir, CacheIndex.JOURNAL_NAME), true));
+	}
+
+	private static CacheEntry completed(String studyUid, int completed, int warning)
+	{
+		return new CacheEntry(studyUid, new File(studyUid), completed, warning);
+	}
+
+	private static CacheEntry inProgress(String studyUid)
+	{
+		return new CacheEntry(new RetrieveJob(new RetrieveParameters(studyUid,
+																	 null,
+																	 null,
+																	 Level.STUDY)));
+	}
+
+}
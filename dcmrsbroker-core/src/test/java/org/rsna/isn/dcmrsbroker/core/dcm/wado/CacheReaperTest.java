@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the eviction of studies between the cache watermarks. The test
+ * settings limit the cache to 1000000 bytes with watermarks at 90% and 75%.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class CacheReaperTest
+{
+	private static final long STUDY_SIZE = 250000;
+
+	private static final long LOW_WATERMARK = 750000;
+
+	@BeforeClass
+	public static void init()
+	{
+		// Purges the cache directory, so it has to run before studies are written
+		CacheManager.init();
+	}
+
+	@Test(timeout = 10000)
+	public void evictsLeastRecentlyUsedStudiesDownToLowWatermark() throws Exception
+	{
+		String running = "1.1";
+		String accessed = "1.2";
+		String oldest = "1.3";
+		String newest = "1.4";
+
+		write(running);
+		RetrieveParameters params = new RetrieveParameters(running, null, null, Level.STUDY);
+		CacheManager.setInProgress(params, new RetrieveJob(params));
+
+		write(accessed);
+		write(oldest);
+		assertFalse(CacheReaper.isBelowLowWatermark());
+
+		Thread.sleep(5);
+		CacheReaper.recordAccess(accessed);
+
+		// Pushes the cache above the high watermark
+		write(newest);
+
+		while (studyDir(oldest).exists()) {
+			Thread.sleep(10);
+		}
+
+		// The study being retrieved is skipped and eviction stops at the
+		// low watermark
+		assertTrue(studyDir(running).isDirectory());
+		assertTrue(studyDir(accessed).isDirectory());
+		assertTrue(studyDir(newest).isDirectory());
+		assertEquals(LOW_WATERMARK, CacheReaper.getCacheSize());
+	}
+
+	private static void write(String studyUid) throws IOException, InterruptedException
+	{
+		Thread.sleep(5);
+
+		FileUtils.touch(CacheManager.buildFile(studyUid, "2", "3", "dcm"));
+		CacheReaper.recordWrite(studyUid, STUDY_SIZE);
+	}
+
+	private static File studyDir(String studyUid)
+	{
+		return CacheManager.buildFile(studyUid, null, null, null);
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.TestRequest;
+import org.rsna.isn.dcmrsbroker.core.spark.qido.QueryParameters;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for answering queries from the metadata index only when it lists
+ * every cached object of a completely retrieved study
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class MetadataIndexTest
+{
+	@BeforeClass
+	public static void setUpClass()
+	{
+		CacheManager.init();
+	}
+
+	@Test
+	public void completeStudyIsAnswered() throws Exception
+	{
+		String studyUid = newStudy("7.1");
+		store(studyUid, "1.1", "1.1.1");
+		store(studyUid, "1.1", "1.1.2");
+		store(studyUid, "1.2", "1.2.1");
+		complete(studyUid, 3);
+
+		assertEquals(2, MetadataIndex.query(query(studyUid, null, Level.SERIES)).size());
+		assertEquals(3, MetadataIndex.query(query(studyUid, null, Level.IMAGE)).size());
+		assertEquals(2, MetadataIndex.query(query(studyUid, "1.1", Level.IMAGE)).size());
+	}
+
+	@Test
+	public void incompleteRetrieveIsNotAnswered() throws Exception
+	{
+		String studyUid = newStudy("7.2");
+		store(studyUid, "1.1", "1.1.1");
+
+		assertNull(MetadataIndex.query(query(studyUid, null, Level.SERIES)));
+	}
+
+	@Test
+	public void unindexedObjectIsNotAnswered() throws Exception
+	{
+		String studyUid = newStudy("7.3");
+		store(studyUid, "1.1", "1.1.1");
+		FileUtils.touch(CacheManager.buildFile(studyUid, "1.1", "1.1.2", "dcm"));
+		complete(studyUid, 2);
+
+		assertNull(MetadataIndex.query(query(studyUid, null, Level.SERIES)));
+	}
+
+	@Test
+	public void truncatedIndexIsNotAnswered() throws Exception
+	{
+		String studyUid = newStudy("7.4");
+		store(studyUid, "1.1", "1.1.1");
+		complete(studyUid, 1);
+
+		// A record that claims more bytes than were written
+		append(studyUid, 1000, new byte[10]);
+
+		assertNull(MetadataIndex.query(query(studyUid, null, Level.SERIES)));
+	}
+
+	@Test
+	public void unreadableIndexIsNotAnswered() throws Exception
+	{
+		String studyUid = newStudy("7.5");
+		store(studyUid, "1.1", "1.1.1");
+		complete(studyUid, 1);
+
+		// A complete record that does not hold a data set
+		append(studyUid, 6, new byte[] { 0x08, 0x00, 0x18, 0x00, 'U', 'I' });
+
+		assertNull(MetadataIndex.query(query(studyUid, null, Level.SERIES)));
+	}
+
+	/**
+	 * Remove what earlier runs left in the cache directory
+	 */
+	private static String newStudy(String studyUid) throws Exception
+	{
+		FileUtils.deleteDirectory(CacheManager.buildFile(studyUid, null, null, null));
+		MetadataIndex.remove(studyUid);
+
+		return studyUid;
+	}
+
+	/**
+	 * Write an object to the cache and the index
+	 */
+	private static void store(String studyUid, String seriesUid, String instanceUid)
+			throws Exception
+	{
+		FileUtils.touch(CacheManager.buildFile(studyUid, seriesUid, instanceUid, "dcm"));
+
+		Attributes obj = new Attributes();
+		obj.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		obj.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+		obj.setString(Tag.SOPInstanceUID, VR.UI, instanceUid);
+		obj.setString(Tag.Modality, VR.CS, "CT");
+
+		MetadataIndex.add(obj);
+	}
+
+	private static void complete(String studyUid, int completed) throws Exception
+	{
+		CacheManager.setCompleted(new RetrieveParameters(studyUid,
+														 null,
+														 null,
+														 Level.STUDY), completed, 0);
+	}
+
+	private static void append(String studyUid, int length, byte record[])
+			throws Exception
+	{
+		File file = new File(CacheManager.buildFile(studyUid, null, null, null),
+							 "metadata.idx");
+		try (DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(file, true))) {
+			out.writeInt(length);
+			out.write(record);
+		}
+
+		MetadataIndex.remove(studyUid);
+	}
+
+	private static QueryParameters query(String studyUid, String seriesUid, Level level)
+	{
+		TestRequest rqst = new TestRequest().param("studyUid", studyUid);
+		if (seriesUid != null) {
+			rqst.param("seriesUid", seriesUid);
+		}
+
+		return new QueryParameters(rqst, level);
+	}
+
+}
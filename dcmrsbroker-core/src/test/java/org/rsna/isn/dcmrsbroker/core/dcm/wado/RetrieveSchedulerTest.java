@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.dcm.wado;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.rsna.isn.dcmrsbroker.core.dcm.Level;
+import org.rsna.isn.dcmrsbroker.core.spark.wado.RetrieveParameters;
+import static org.junit.Assert.*;
+import static org.rsna.isn.dcmrsbroker.core.dcm.wado.RetrievePriority.*;
+
+/**
+ * Tests for the order and concurrency of scheduled retrieves. The test
+ * settings allow two concurrent retrieves per remote AE, one of which is
+ * reserved for interactive retrieves.
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class RetrieveSchedulerTest
+{
+	private final BlockingQueue<String> started = new LinkedBlockingQueue();
+
+	private final Map<String, CountDownLatch> gates = new HashMap();
+
+	@After
+	public void tearDown()
+	{
+		gates.values().forEach(CountDownLatch::countDown);
+	}
+
+	@Test(timeout = 10000)
+	public void runsByPriorityWithinLimits() throws Exception
+	{
+		String lane = "PRIORITY";
+
+		submit(lane, "bg1", BACKGROUND);
+		assertEquals("bg1", started.take());
+
+		// Only interactive retrieves may use the reserved slot
+		submit(lane, "bg2", BACKGROUND);
+		submit(lane, "pf1", PREFETCH);
+		submit(lane, "i1", INTERACTIVE);
+		assertEquals("i1", started.take());
+
+		submit(lane, "i2", INTERACTIVE);
+
+		RetrieveScheduler.LaneMetrics metrics = getMetrics(lane);
+		assertEquals(2, metrics.getRunning());
+		assertEquals(1, metrics.getQueued(INTERACTIVE));
+		assertEquals(1, metrics.getQueued(PREFETCH));
+		assertEquals(1, metrics.getQueued(BACKGROUND));
+
+		release("i1");
+		assertEquals("i2", started.take());
+
+		release("i2");
+		release("bg1");
+		assertEquals("pf1", started.take());
+		assertNull(started.poll(100, TimeUnit.MILLISECONDS));
+
+		release("pf1");
+		assertEquals("bg2", started.take());
+	}
+
+	@Test(timeout = 10000)
+	public void promotedRetrieveMovesAhead() throws Exception
+	{
+		String lane = "PROMOTE";
+
+		submit(lane, "bg1", BACKGROUND);
+		assertEquals("bg1", started.take());
+
+		submit(lane, "bg2", BACKGROUND);
+		RetrieveJob job = submit(lane, "bg3", BACKGROUND);
+		assertNull(started.poll(100, TimeUnit.MILLISECONDS));
+
+		RetrieveScheduler.promote(job, INTERACTIVE);
+		assertEquals("bg3", started.take());
+		assertEquals(INTERACTIVE, job.getPriority());
+	}
+
+	private RetrieveJob submit(String lane, String name, RetrievePriority priority)
+	{
+		RetrieveJob job = new RetrieveJob(new RetrieveParameters("1.2.3",
+																 null,
+																 null,
+																 Level.STUDY));
+		job.setPriority(priority);
+
+		CountDownLatch gate = new CountDownLatch(1);
+		gates.put(name, gate);
+
+		RetrieveScheduler.submit(lane, job, () -> {
+			started.add(name);
+
+			try {
+				gate.await();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		return job;
+	}
+
+	private void release(String name)
+	{
+		gates.get(name).countDown();
+	}
+
+	private static RetrieveScheduler.LaneMetrics getMetrics(String lane)
+	{
+		for (RetrieveScheduler.LaneMetrics metrics : RetrieveScheduler.getMetrics()) {
+			if (metrics.getName().equals(lane)) {
+				return metrics;
+			}
+		}
+
+		throw new AssertionError("No metrics for " + lane);
+	}
+
+}
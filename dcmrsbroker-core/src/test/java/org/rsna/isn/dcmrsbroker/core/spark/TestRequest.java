@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Radiological Society of North America (RSNA).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rsna.isn.dcmrsbroker.core.spark;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import spark.Request;
+
+/**
+ * Request with fixed route and query parameters, used to build the
+ * parameters of a QIDO or WADO request without a servlet container
+ *
+ * @author Wyatt Tellis
+ * @since 1.0.0
+ * @version 1.0.0
+ */
+public class TestRequest extends Request
+{
+	private final Map<String, String> params = new HashMap();
+
+	private final Map<String, String[]> queryParams = new LinkedHashMap();
+
+	/**
+	 * Set a route parameter
+	 *
+	 * @param name the name without the leading colon
+	 * @param value the value
+	 * @return this request
+	 */
+	public TestRequest param(String name, String value)
+	{
+		params.put(name, value);
+
+		return this;
+	}
+
+	/**
+	 * Set a query parameter
+	 *
+	 * @param name the name
+	 * @param values the values
+	 * @return this request
+	 */
+	public TestRequest query(String name, String... values)
+	{
+		queryParams.put(name, values);
+
+		return this;
+	}
+
+	@Override
+	public String params(String name)
+	{
+		return params.get(name);
+	}
+
+	@Override
+	public Set<String> queryParams()
+	{
+		return queryParams.keySet();
+	}
+
+	@Override
+	public String queryParams(String name)
+	{
+		String values[] = queryParams.get(name);
+
+		return values != null && values.length > 0 ? values[0] : null;
+	}
+
+	@Override
+	public String[] queryParamsValues(String name)
+	{
+		return queryParams.get(name);
+	}
+
+}